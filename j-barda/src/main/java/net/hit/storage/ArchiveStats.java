@@ -0,0 +1,88 @@
+package net.hit.storage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of a cabinet export or import.
+ *
+ * Only the documents actually transferred by the operation are counted, documents skipped when resuming an export are reported
+ * separately.
+ */
+public class ArchiveStats {
+
+	private static final double	BYTES_PER_MB	= 1024 * 1024;
+
+	private long								documents;
+	private long								bytes;
+	private long								skipped;
+	private long								elapsedNanos;
+
+	ArchiveStats(long documents, long bytes, long skipped, long elapsedNanos) {
+		this.documents = documents;
+		this.bytes = bytes;
+		this.skipped = skipped;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return the number of documents transferred
+	 */
+	public long getDocuments()
+	{
+		return documents;
+	}
+
+	/**
+	 * @return the number of document bytes transferred
+	 */
+	public long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * @return the number of documents already present in the archive of a resumed export
+	 */
+	public long getSkipped()
+	{
+		return skipped;
+	}
+
+	/**
+	 * @param unit
+	 *          the unit to express the duration in
+	 * @return the duration of the operation
+	 */
+	public long getElapsed(TimeUnit unit)
+	{
+		return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the throughput in documents per second
+	 */
+	public double getDocumentsPerSecond()
+	{
+		return perSecond(documents);
+	}
+
+	/**
+	 * @return the throughput in megabytes per second
+	 */
+	public double getMegabytesPerSecond()
+	{
+		return perSecond(bytes) / BYTES_PER_MB;
+	}
+
+	private double perSecond(long amount)
+	{
+		if (elapsedNanos == 0) return 0;
+		return amount * 1e9 / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d documents (%.1f MB, %d skipped) in %d ms: %.0f docs/s, %.2f MB/s", documents, bytes / BYTES_PER_MB, skipped,
+													getElapsed(TimeUnit.MILLISECONDS), getDocumentsPerSecond(), getMegabytesPerSecond());
+	}
+}
@@ -0,0 +1,68 @@
+package net.hit.storage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of reusable {@link PooledBuffer}s.
+ * 
+ * Buffers grow to fit the largest document they have held so once the pool is warm, converting a document allocates nothing proportional
+ * to its size. Buffers that grew larger than the retained capacity are dropped on release rather than kept around.
+ * 
+ * The pool is thread safe, buffers are not: a buffer belongs to whoever acquired it until it is closed.
+ */
+public class BufferPool {
+
+	/** Default number of idle buffers kept by the pool */
+	public static final int							DEFAULT_MAX_POOLED					= 64;
+
+	/** Default capacity beyond which a buffer is not returned to the pool */
+	public static final int							DEFAULT_MAX_RETAINED_CAPACITY	= 4 * 1024 * 1024;
+
+	static final int										INITIAL_CAPACITY						= 8 * 1024;
+
+	private BlockingQueue<PooledBuffer>	idle;
+	private int													maxRetainedCapacity;
+
+	/**
+	 * Creates a pool with the default limits.
+	 */
+	public BufferPool() {
+		this(DEFAULT_MAX_POOLED, DEFAULT_MAX_RETAINED_CAPACITY);
+	}
+
+	/**
+	 * @param maxPooled
+	 *          number of idle buffers kept by the pool
+	 * @param maxRetainedCapacity
+	 *          capacity beyond which a buffer is not returned to the pool
+	 */
+	public BufferPool(int maxPooled, int maxRetainedCapacity) {
+		this.idle = new ArrayBlockingQueue<>(maxPooled);
+		this.maxRetainedCapacity = maxRetainedCapacity;
+	}
+
+	/**
+	 * Takes an empty buffer from the pool, creating one if none is idle.
+	 * 
+	 * @return a buffer to be closed once done with
+	 */
+	public PooledBuffer acquire()
+	{
+		PooledBuffer buffer = this.idle.poll();
+		if (buffer == null)
+		{
+			buffer = new PooledBuffer(this, INITIAL_CAPACITY);
+		}
+		buffer.reuse();
+		return buffer;
+	}
+
+	void release(PooledBuffer buffer)
+	{
+		if (buffer.capacity() <= this.maxRetainedCapacity)
+		{
+			this.idle.offer(buffer);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package net.hit.storage;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream reading the remaining bytes of a ByteBuffer without copying them first.
+ * 
+ * Reading advances the buffer's position.
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	private ByteBuffer	buffer;
+
+	/**
+	 * @param buffer
+	 *          the buffer to read from
+	 */
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public int read() {
+		return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) return 0;
+		if (!this.buffer.hasRemaining()) return -1;
+
+		int count = Math.min(len, this.buffer.remaining());
+		this.buffer.get(b, off, count);
+		return count;
+	}
+
+	@Override
+	public long skip(long n) {
+		int count = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+		this.buffer.position(this.buffer.position() + count);
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return this.buffer.remaining();
+	}
+}
@@ -0,0 +1,393 @@
+package net.hit.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Moves whole cabinets of a {@link SimpleFanningFoldersFlatFilesDocStore} in and out of a single sequential archive file.
+ *
+ * The archive is laid out as follow, all numbers big endian:
+ *
+ * <pre>
+ * header  : "JBARDA01" | cabinet name (modified UTF-8)
+ * record* : id msb (8) | id lsb (8) | DocType name (modified UTF-8) | content length (4) | content
+ * index   : (id msb (8) | id lsb (8) | record offset (8))*
+ * trailer : index offset (8) | record count (4) | "JBINDEX1"
+ * </pre>
+ *
+ * Records are only ever appended and the index and trailer are written last. An export that did not complete leaves an archive without
+ * trailer which can be resumed: the complete records are kept, the partial one is truncated and only the documents not already archived
+ * are read from the store. A complete archive is never resumed, it would keep the old content of the documents rewritten or deleted since
+ * it was made, so it is exported again from scratch.
+ */
+class CabinetArchiver {
+
+	static final byte[]																	HEADER_MAGIC			= "JBARDA01".getBytes(StandardCharsets.US_ASCII);
+	static final byte[]																	TRAILER_MAGIC			= "JBINDEX1".getBytes(StandardCharsets.US_ASCII);
+	static final int																		TRAILER_LENGTH		= 8 + 4 + 8;
+
+	private static final int														IO_BUFFER_SIZE		= 1024 * 1024;
+	private static final int														IMPORT_BATCH_DOCS	= 1024;
+	private static final int														IMPORT_BATCH_BYTES	= 16 * 1024 * 1024;
+	private static final long														PROGRESS_EVERY		= 100_000;
+
+	private static final Logger													log								= LoggerFactory.getLogger(CabinetArchiver.class);
+
+	private SimpleFanningFoldersFlatFilesDocStore	store;
+	private int																					threads;
+
+	CabinetArchiver(SimpleFanningFoldersFlatFilesDocStore store, int threads) {
+		this.store = store;
+		this.threads = threads;
+	}
+
+	ArchiveStats exportCabinet(String cabinetName, Path archive, boolean resume) throws IOException
+	{
+		long start = System.nanoTime();
+		Set<String> archived = new HashSet<>();
+		ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+		DataOutputStream index = new DataOutputStream(indexBytes);
+
+		ExecutorService readers = Executors.newFixedThreadPool(this.threads);
+		try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long position = 0;
+			if (resume && channel.size() > 0)
+			{
+				if (hasTrailer(channel))
+				{
+					log.info("The archive [{}] is complete, exporting cabinet [{}] again from scratch", archive, cabinetName);
+				}
+				else
+				{
+					position = this.recover(channel, archive, cabinetName, archived, index);
+					log.info("Resuming export of cabinet [{}] to [{}] after {} documents", cabinetName, archive, archived.size());
+				}
+			}
+			channel.truncate(position);
+			channel.position(position);
+
+			CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), IO_BUFFER_SIZE));
+			DataOutputStream out = new DataOutputStream(counter);
+			if (position == 0)
+			{
+				out.write(HEADER_MAGIC);
+				out.writeUTF(cabinetName);
+			}
+
+			long documents = 0;
+			long bytes = 0;
+			long skipped = archived.size();
+			int count = archived.size();
+			CompletionService<Record> reads = new ExecutorCompletionService<>(readers);
+			int inFlight = 0;
+			try (Stream<Path> files = this.store.listDocumentFiles(cabinetName)) {
+				Iterator<Path> pending = files.filter(f -> !archived.contains(f.getFileName().toString())).iterator();
+				while (pending.hasNext() || inFlight > 0) {
+					while (inFlight < this.threads * 4 && pending.hasNext()) {
+						Path file = pending.next();
+						reads.submit(() -> Record.read(file));
+						inFlight++;
+					}
+
+					Record record = take(reads);
+					inFlight--;
+					if (record == null) continue;
+
+					index.writeLong(record.docId.getMostSignificantBits());
+					index.writeLong(record.docId.getLeastSignificantBits());
+					index.writeLong(position + counter.getCount());
+					record.writeTo(out);
+					count++;
+					documents++;
+					bytes += record.content.length;
+					if (documents % PROGRESS_EVERY == 0)
+					{
+						log.info("Exporting cabinet [{}]: {}", cabinetName, new ArchiveStats(documents, bytes, skipped, System.nanoTime() - start));
+					}
+				}
+			}
+
+			long indexOffset = position + counter.getCount();
+			index.flush();
+			indexBytes.writeTo(out);
+			out.writeLong(indexOffset);
+			out.writeInt(count);
+			out.write(TRAILER_MAGIC);
+			out.flush();
+			channel.force(false);
+
+			ArchiveStats stats = new ArchiveStats(documents, bytes, skipped, System.nanoTime() - start);
+			log.info("Exported cabinet [{}] to [{}]: {}", cabinetName, archive, stats);
+			return stats;
+		}
+		finally {
+			readers.shutdownNow();
+		}
+	}
+
+	ArchiveStats importCabinet(String cabinetName, Path archive) throws IOException
+	{
+		long start = System.nanoTime();
+		ExecutorService writers = Executors.newFixedThreadPool(this.threads);
+		try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+			long indexOffset = readTrailer(channel, archive);
+
+			CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), IO_BUFFER_SIZE));
+			DataInputStream in = new DataInputStream(counter);
+			String sourceCabinet = readHeader(in, archive);
+			log.info("Importing cabinet [{}] from [{}] into cabinet [{}]", sourceCabinet, archive, cabinetName);
+
+			Set<Path> createdBuckets = new HashSet<>();
+			CabinetFilter filter = this.store.filterFor(cabinetName);
+			List<Record> batch = new ArrayList<>(IMPORT_BATCH_DOCS);
+			long batchBytes = 0;
+			long documents = 0;
+			long bytes = 0;
+			while (counter.getCount() < indexOffset) {
+				Record record = Record.readFrom(in);
+				batch.add(record);
+				batchBytes += record.content.length;
+				documents++;
+				bytes += record.content.length;
+				if (batch.size() >= IMPORT_BATCH_DOCS || batchBytes >= IMPORT_BATCH_BYTES)
+				{
+					this.writeBatch(cabinetName, batch, createdBuckets, filter, writers);
+					batch.clear();
+					batchBytes = 0;
+				}
+				if (documents % PROGRESS_EVERY == 0)
+				{
+					log.info("Importing cabinet [{}]: {}", cabinetName, new ArchiveStats(documents, bytes, 0, System.nanoTime() - start));
+				}
+			}
+			this.writeBatch(cabinetName, batch, createdBuckets, filter, writers);
+
+			ArchiveStats stats = new ArchiveStats(documents, bytes, 0, System.nanoTime() - start);
+			log.info("Imported cabinet [{}] from [{}]: {}", cabinetName, archive, stats);
+			return stats;
+		}
+		finally {
+			writers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Creates the buckets of the batch that were not created yet, then writes its documents in parallel.
+	 *
+	 * Should the batch hold several records of the same file only the last one is written, so that they do not race each other.
+	 */
+	private void writeBatch(String cabinetName, List<Record> batch, Set<Path> createdBuckets, CabinetFilter filter, ExecutorService writers) throws IOException
+	{
+		Map<Path, Record> files = new LinkedHashMap<>();
+		for (Record record : batch) {
+			files.put(this.store.locateFile(cabinetName, record.docId, record.docTypeName), record);
+		}
+		List<Future<?>> writes = new ArrayList<>(files.size());
+		for (Map.Entry<Path, Record> file : files.entrySet()) {
+			Path filePath = file.getKey();
+			Record record = file.getValue();
+			Path bucket = filePath.getParent();
+			if (createdBuckets.add(bucket))
+			{
+				Files.createDirectories(bucket);
+			}
+			writes.add(writers.submit(() ->
+				{
+					this.store.writeFile(filePath, ByteBuffer.wrap(record.content));
+					return null;
+				}));
+		}
+		for (Future<?> write : writes) {
+			await(write);
+		}
+		for (Record record : batch) {
+			filter.put(record.docId);
+		}
+	}
+
+	/**
+	 * Scans the records of an archive whose export did not complete.
+	 *
+	 * @return the offset following the last complete record
+	 * @throws IOException
+	 *           if the archive could not be read or was exported from another cabinet
+	 */
+	private long recover(FileChannel channel, Path archive, String cabinetName, Set<String> archived, DataOutputStream index) throws IOException
+	{
+		long end = channel.size();
+		CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), IO_BUFFER_SIZE));
+		DataInputStream in = new DataInputStream(counter);
+		String sourceCabinet = readHeader(in, archive);
+		if (!sourceCabinet.equals(cabinetName)) { throw new IOException(String.format("The archive [%s] holds cabinet [%s], it cannot resume the export of cabinet [%s]",
+																																					archive, sourceCabinet, cabinetName)); }
+		long recovered = counter.getCount();
+		try {
+			while (recovered < end) {
+				UUID docId = new UUID(in.readLong(), in.readLong());
+				String docTypeName = in.readUTF();
+				int length = in.readInt();
+				if (length < 0 || counter.getCount() + length > end) break;
+				ByteStreams.skipFully(in, length);
+
+				archived.add(SimpleFanningFoldersFlatFilesDocStore.fileNameOf(docId, docTypeName));
+				index.writeLong(docId.getMostSignificantBits());
+				index.writeLong(docId.getLeastSignificantBits());
+				index.writeLong(recovered);
+				recovered = counter.getCount();
+			}
+		}
+		catch (EOFException e) {
+			// the interrupted export left a partial record, it is dropped
+		}
+		return recovered;
+	}
+
+	private static boolean hasTrailer(FileChannel channel) throws IOException
+	{
+		if (channel.size() < HEADER_MAGIC.length + TRAILER_LENGTH) return false;
+		ByteBuffer magic = ByteBuffer.allocate(TRAILER_MAGIC.length);
+		readFully(channel, magic, channel.size() - TRAILER_MAGIC.length);
+		return Arrays.equals(magic.array(), TRAILER_MAGIC);
+	}
+
+	/**
+	 * @return the offset of the index, which is also the end of the records
+	 */
+	private static long readTrailer(FileChannel channel, Path archive) throws IOException
+	{
+		if (!hasTrailer(channel)) { throw new IOException(String.format("The archive [%s] is incomplete, it has no index", archive)); }
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+		readFully(channel, trailer, channel.size() - TRAILER_LENGTH);
+		trailer.flip();
+		return trailer.getLong();
+	}
+
+	private static String readHeader(DataInputStream in, Path archive) throws IOException
+	{
+		byte[] magic = new byte[HEADER_MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, HEADER_MAGIC)) { throw new IOException(String.format("The file [%s] is not a cabinet archive", archive)); }
+		return in.readUTF();
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer target, long position) throws IOException
+	{
+		while (target.hasRemaining()) {
+			if (channel.read(target, position + target.position()) < 0) { throw new EOFException(); }
+		}
+	}
+
+	private static Record take(CompletionService<Record> reads) throws IOException
+	{
+		try {
+			return await(reads.take());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading the cabinet");
+		}
+	}
+
+	private static <V> V await(Future<V> future) throws IOException
+	{
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while transferring the cabinet");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * A document in transit.
+	 */
+	private static class Record {
+		private UUID		docId;
+		private String	docTypeName;
+		private byte[]	content;
+
+		private Record(UUID docId, String docTypeName, byte[] content) {
+			this.docId = docId;
+			this.docTypeName = docTypeName;
+			this.content = content;
+		}
+
+		/**
+		 * @return the document held by the file or null if the file vanished since it was listed
+		 */
+		static Record read(Path documentFile) throws IOException
+		{
+			String fileName = documentFile.getFileName().toString();
+			UUID docId = SimpleFanningFoldersFlatFilesDocStore.docIdOf(documentFile);
+			String docTypeName = SimpleFanningFoldersFlatFilesDocStore.docTypeNameOf(documentFile);
+			try {
+				return new Record(docId, docTypeName, Files.readAllBytes(documentFile));
+			}
+			catch (NoSuchFileException e) {
+				log.debug("The document [{}] vanished before it could be exported", fileName);
+				return null;
+			}
+		}
+
+		static Record readFrom(DataInputStream in) throws IOException
+		{
+			UUID docId = new UUID(in.readLong(), in.readLong());
+			String docTypeName = in.readUTF();
+			byte[] content = new byte[in.readInt()];
+			in.readFully(content);
+			return new Record(docId, docTypeName, content);
+		}
+
+		void writeTo(DataOutputStream out) throws IOException
+		{
+			out.writeLong(this.docId.getMostSignificantBits());
+			out.writeLong(this.docId.getLeastSignificantBits());
+			out.writeUTF(this.docTypeName);
+			out.writeInt(this.content.length);
+			out.write(this.content);
+		}
+	}
+}
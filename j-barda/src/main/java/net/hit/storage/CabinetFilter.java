@@ -0,0 +1,131 @@
+package net.hit.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.PrimitiveSink;
+
+/**
+ * Bloom filter over the document IDs of a single cabinet.
+ *
+ * A negative answer from {@link #mightContain(UUID)} is definitive and lets the store answer a miss without touching the disk. A positive
+ * answer must still be confirmed against the store.
+ *
+ * The filter is persisted only when the store is closed. The persisted file is consumed when loaded so that a store that dies before closing
+ * rebuilds the filter from the cabinet content instead of trusting a stale one.
+ *
+ * A filter does not grow: once it holds more documents than it was sized for its false positive rate climbs. A warning is logged when that
+ * happens and a persisted filter in that state is not loaded back, so that the store rebuilds it sized for the cabinet's actual content.
+ */
+class CabinetFilter {
+
+	static final String					FILTER_FILE_NAME	= ".bloom";
+
+	private static final Logger	log								= LoggerFactory.getLogger(CabinetFilter.class);
+
+	private Path								cabinetRoot;
+	private BloomFilter<UUID>		filter;
+	private int									expectedInsertions;
+	private long								insertions;
+
+	/**
+	 * Creates an empty filter.
+	 *
+	 * @param cabinetRoot
+	 *          the cabinet's root folder, where the filter is persisted
+	 * @param expectedInsertions
+	 *          the number of documents the filter is sized for
+	 * @param fpp
+	 *          the desired false positive probability
+	 */
+	CabinetFilter(Path cabinetRoot, int expectedInsertions, double fpp) {
+		this(cabinetRoot, BloomFilter.create(UUIDFunnel.INSTANCE, expectedInsertions, fpp), expectedInsertions, 0);
+	}
+
+	private CabinetFilter(Path cabinetRoot, BloomFilter<UUID> filter, int expectedInsertions, long insertions) {
+		this.cabinetRoot = cabinetRoot;
+		this.filter = filter;
+		this.expectedInsertions = expectedInsertions;
+		this.insertions = insertions;
+	}
+
+	/**
+	 * Loads and consumes the persisted filter of a cabinet.
+	 *
+	 * @param cabinetRoot
+	 *          the cabinet's root folder
+	 * @return the persisted filter or null if there is none that can be trusted or it is overfilled
+	 */
+	static CabinetFilter load(Path cabinetRoot)
+	{
+		Path filterFile = cabinetRoot.resolve(FILTER_FILE_NAME);
+		if (!Files.isRegularFile(filterFile)) return null;
+
+		try {
+			CabinetFilter loaded;
+			try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(filterFile)))) {
+				int expectedInsertions = in.readInt();
+				long insertions = in.readLong();
+				@SuppressWarnings("unchecked")
+				BloomFilter<UUID> filter = (BloomFilter<UUID>) in.readObject();
+				loaded = new CabinetFilter(cabinetRoot, filter, expectedInsertions, insertions);
+			}
+			Files.delete(filterFile);
+			if (loaded.insertions > loaded.expectedInsertions)
+			{
+				log.info("The filter [{}] holds {} documents but was sized for {}, it will be rebuilt", filterFile, loaded.insertions, loaded.expectedInsertions);
+				return null;
+			}
+			return loaded;
+		}
+		catch (IOException | ClassNotFoundException | ClassCastException e) {
+			log.warn("Could not load the filter [{}], it will be rebuilt", filterFile, e);
+			return null;
+		}
+	}
+
+	synchronized void put(UUID docID)
+	{
+		// only IDs that changed the filter are counted, rewrites of a document mostly do not
+		if (this.filter.put(docID) && ++this.insertions == this.expectedInsertions + 1L)
+		{
+			log.warn("The filter of cabinet [{}] now holds more than the {} documents it was sized for, its false positive rate will degrade until it is rebuilt at the next start",
+								this.cabinetRoot, this.expectedInsertions);
+		}
+	}
+
+	synchronized boolean mightContain(UUID docID)
+	{
+		return this.filter.mightContain(docID);
+	}
+
+	synchronized void save() throws IOException
+	{
+		Files.createDirectories(this.cabinetRoot);
+		try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(this.cabinetRoot.resolve(FILTER_FILE_NAME))))) {
+			out.writeInt(this.expectedInsertions);
+			out.writeLong(this.insertions);
+			out.writeObject(this.filter);
+		}
+	}
+
+	enum UUIDFunnel implements Funnel<UUID> {
+		INSTANCE;
+
+		@Override
+		public void funnel(UUID from, PrimitiveSink into) {
+			into.putLong(from.getMostSignificantBits()).putLong(from.getLeastSignificantBits());
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package net.hit.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The change journal of a single cabinet.
+ *
+ * Events are kept in segment files named after the sequence of their first event. Records have a fixed length so the event of any sequence
+ * is found by seeking straight to it:
+ *
+ * <pre>
+ * sequence (8) | type (1) | id msb (8) | id lsb (8) | timestamp (8)
+ * </pre>
+ *
+ * Appended events are held in memory and written to the active segment in batches.
+ */
+class CabinetJournal {
+
+	static final int					RECORD_LENGTH				= 8 + 1 + 8 + 8 + 8;
+	static final long					EVENTS_PER_SEGMENT	= 1 << 20;
+
+	private static final String	SEGMENT_SUFFIX			= ".journal";
+	private static final String	OFFSET_SUFFIX				= ".offset";
+
+	private Path							journalRoot;
+	private int								batchSize;
+
+	private long							nextSequence;
+	private List<ChangeEvent>	pending;
+	private ByteBuffer				batchBuffer;
+
+	private FileChannel				segment;
+	private long							segmentFirstSequence;
+	private boolean						repairNeeded;
+
+	private CabinetJournal(Path journalRoot, int batchSize) {
+		this.journalRoot = journalRoot;
+		this.batchSize = batchSize;
+		this.pending = new ArrayList<>(batchSize);
+		this.batchBuffer = ByteBuffer.allocate(batchSize * RECORD_LENGTH);
+	}
+
+	/**
+	 * Opens the journal of a cabinet, recovering the next sequence from the last segment.
+	 *
+	 * @param journalRoot
+	 *          the folder of the cabinet's journal
+	 * @param batchSize
+	 *          the number of pending events that triggers a write
+	 * @return the cabinet's journal
+	 * @throws IOException
+	 *           if the last segment could not be recovered
+	 */
+	static CabinetJournal open(Path journalRoot, int batchSize) throws IOException
+	{
+		Files.createDirectories(journalRoot);
+		CabinetJournal journal = new CabinetJournal(journalRoot, batchSize);
+		List<Long> segments = journal.segments();
+		if (!segments.isEmpty())
+		{
+			journal.segmentFirstSequence = segments.get(segments.size() - 1);
+			journal.segment = FileChannel.open(journal.segmentFile(journal.segmentFirstSequence), StandardOpenOption.WRITE);
+			// a record partially written when the process died is dropped
+			long records = journal.segment.size() / RECORD_LENGTH;
+			journal.segment.truncate(records * RECORD_LENGTH);
+			journal.segment.position(records * RECORD_LENGTH);
+			journal.nextSequence = journal.segmentFirstSequence + records;
+		}
+		return journal;
+	}
+
+	synchronized long append(ChangeEvent.Type type, UUID docID) throws IOException
+	{
+		ChangeEvent event = new ChangeEvent(this.nextSequence++, type, docID, System.currentTimeMillis());
+		this.pending.add(event);
+		if (this.pending.size() >= this.batchSize)
+		{
+			this.flush();
+		}
+		return event.getSequence();
+	}
+
+	/**
+	 * Writes the pending events, rolling to a new segment when the active one is full.
+	 *
+	 * Only the events whose records were completely written leave the pending list. When a write fails the segment is truncated back to the
+	 * last of them, so that a retry writes the remaining events at the offset of their sequence.
+	 *
+	 * @throws IOException
+	 *           if the events could not be written
+	 */
+	synchronized void flush() throws IOException
+	{
+		if (this.repairNeeded)
+		{
+			this.truncateSegment(this.firstPendingSequence());
+		}
+
+		int written = 0;
+		try {
+			for (int i = 0; i < this.pending.size(); i++) {
+				ChangeEvent event = this.pending.get(i);
+				if (this.segment == null || event.getSequence() - this.segmentFirstSequence >= EVENTS_PER_SEGMENT)
+				{
+					this.writeBatchBuffer();
+					written = i;
+					this.roll(event.getSequence());
+				}
+				if (!this.batchBuffer.hasRemaining())
+				{
+					this.writeBatchBuffer();
+					written = i;
+				}
+				this.batchBuffer.putLong(event.getSequence());
+				this.batchBuffer.put((byte) event.getType().ordinal());
+				this.batchBuffer.putLong(event.getDocID().getMostSignificantBits());
+				this.batchBuffer.putLong(event.getDocID().getLeastSignificantBits());
+				this.batchBuffer.putLong(event.getTimestamp());
+			}
+			this.writeBatchBuffer();
+			written = this.pending.size();
+		}
+		catch (IOException | RuntimeException e) {
+			this.batchBuffer.clear();
+			this.repairNeeded = true;
+			try {
+				this.truncateSegment(written < this.pending.size() ? this.pending.get(written).getSequence() : this.nextSequence);
+			}
+			catch (IOException repairFailure) {
+				// retried at the next flush
+				e.addSuppressed(repairFailure);
+			}
+			throw e;
+		}
+		finally {
+			this.pending.subList(0, written).clear();
+		}
+	}
+
+	/**
+	 * Drops whatever follows the record preceding the given sequence in the active segment.
+	 */
+	private void truncateSegment(long firstUnwrittenSequence) throws IOException
+	{
+		if (this.segment != null)
+		{
+			long offset = (firstUnwrittenSequence - this.segmentFirstSequence) * RECORD_LENGTH;
+			this.segment.truncate(offset);
+			this.segment.position(offset);
+		}
+		this.repairNeeded = false;
+	}
+
+	private long firstPendingSequence()
+	{
+		return this.pending.isEmpty() ? this.nextSequence : this.pending.get(0).getSequence();
+	}
+
+	/**
+	 * Reads flushed events.
+	 *
+	 * @param fromSequence
+	 *          the sequence of the first event to read
+	 * @param maxEvents
+	 *          the maximum number of events to read
+	 * @return the events read
+	 * @throws IOException
+	 *           if the segments could not be read
+	 */
+	ChangeBatch read(long fromSequence, int maxEvents) throws IOException
+	{
+		List<Long> segments = this.segments();
+		if (segments.isEmpty()) return new ChangeBatch(Collections.emptyList(), fromSequence, false);
+
+		boolean expired = fromSequence < segments.get(0);
+		long sequence = Math.max(fromSequence, segments.get(0));
+		int bufferRecords = (int) Math.min(maxEvents, this.batchSize * 4L);
+		List<ChangeEvent> events = new ArrayList<>(bufferRecords);
+		ByteBuffer buffer = ByteBuffer.allocate(bufferRecords * RECORD_LENGTH);
+
+		for (int i = 0; i < segments.size() && events.size() < maxEvents; i++) {
+			long first = segments.get(i);
+			long next = i + 1 < segments.size() ? segments.get(i + 1) : Long.MAX_VALUE;
+			if (sequence >= next) continue;
+
+			try (FileChannel channel = FileChannel.open(this.segmentFile(first), StandardOpenOption.READ)) {
+				long position = (sequence - first) * RECORD_LENGTH;
+				while (events.size() < maxEvents) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), (long) (maxEvents - events.size()) * RECORD_LENGTH));
+					int read = channel.read(buffer, position);
+					if (read < RECORD_LENGTH) break;
+
+					buffer.flip();
+					while (buffer.remaining() >= RECORD_LENGTH) {
+						events.add(new ChangeEvent(buffer.getLong(), ChangeEvent.Type.values()[buffer.get()], new UUID(buffer.getLong(), buffer.getLong()), buffer.getLong()));
+						position += RECORD_LENGTH;
+						sequence++;
+					}
+				}
+			}
+			catch (NoSuchFileException e) {
+				// purged since listed, the consumer resumes from the next segment
+				if (!events.isEmpty()) break;
+				sequence = next;
+				expired = true;
+			}
+		}
+		return new ChangeBatch(events, sequence, expired);
+	}
+
+	/**
+	 * Deletes the segments, other than the active one, whose last event is older than the cutoff.
+	 *
+	 * Works on the folder alone so that the journals of cabinets not opened by this process are purged too.
+	 *
+	 * @param journalRoot
+	 *          the folder of the cabinet's journal
+	 * @param cutoffMillis
+	 *          time in milliseconds since the epoch before which events are no longer retained
+	 * @throws IOException
+	 *           if a segment could not be deleted
+	 */
+	static void purge(Path journalRoot, long cutoffMillis) throws IOException
+	{
+		List<Long> segments = segments(journalRoot);
+		for (int i = 0; i < segments.size() - 1; i++) {
+			Path segmentFile = segmentFile(journalRoot, segments.get(i));
+			if (Files.getLastModifiedTime(segmentFile).toMillis() >= cutoffMillis) break;
+			Files.deleteIfExists(segmentFile);
+		}
+	}
+
+	long committedOffset(String consumerName) throws IOException
+	{
+		Path offsetFile = this.journalRoot.resolve(consumerName + OFFSET_SUFFIX);
+		if (!Files.isRegularFile(offsetFile)) return 0;
+		return Long.parseLong(new String(Files.readAllBytes(offsetFile), StandardCharsets.US_ASCII).trim());
+	}
+
+	void commitOffset(String consumerName, long nextSequence) throws IOException
+	{
+		Path offsetFile = this.journalRoot.resolve(consumerName + OFFSET_SUFFIX);
+		Path tempFile = this.journalRoot.resolve(consumerName + OFFSET_SUFFIX + ".tmp");
+		Files.write(tempFile, Long.toString(nextSequence).getBytes(StandardCharsets.US_ASCII));
+		Files.move(tempFile, offsetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	synchronized void close() throws IOException
+	{
+		this.flush();
+		if (this.segment != null)
+		{
+			this.segment.close();
+			this.segment = null;
+		}
+	}
+
+	private void writeBatchBuffer() throws IOException
+	{
+		this.batchBuffer.flip();
+		while (this.batchBuffer.hasRemaining()) {
+			this.segment.write(this.batchBuffer);
+		}
+		this.batchBuffer.clear();
+	}
+
+	private void roll(long firstSequence) throws IOException
+	{
+		if (this.segment != null)
+		{
+			this.segment.close();
+			this.segment = null;
+		}
+		this.segmentFirstSequence = firstSequence;
+		this.segment = FileChannel.open(this.segmentFile(firstSequence), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+	}
+
+	private Path segmentFile(long firstSequence)
+	{
+		return segmentFile(this.journalRoot, firstSequence);
+	}
+
+	private static Path segmentFile(Path journalRoot, long firstSequence)
+	{
+		return journalRoot.resolve(String.format("%020d%s", firstSequence, SEGMENT_SUFFIX));
+	}
+
+	private List<Long> segments() throws IOException
+	{
+		return segments(this.journalRoot);
+	}
+
+	/**
+	 * @return the first sequence of every segment, in order
+	 */
+	private static List<Long> segments(Path journalRoot) throws IOException
+	{
+		List<Long> segments = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(journalRoot, "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+}
@@ -0,0 +1,44 @@
+package net.hit.storage;
+
+import java.util.List;
+
+/**
+ * A batch of consecutive events read from a {@link ChangeJournal}.
+ */
+public class ChangeBatch {
+
+	private List<ChangeEvent>	events;
+	private long							nextSequence;
+	private boolean						eventsExpired;
+
+	ChangeBatch(List<ChangeEvent> events, long nextSequence, boolean eventsExpired) {
+		this.events = events;
+		this.nextSequence = nextSequence;
+		this.eventsExpired = eventsExpired;
+	}
+
+	/**
+	 * @return the events in sequence order, empty if the consumer is up to date
+	 */
+	public List<ChangeEvent> getEvents()
+	{
+		return events;
+	}
+
+	/**
+	 * @return the offset to read the next batch from, which is also the offset a consumer saves once it processed this batch
+	 */
+	public long getNextSequence()
+	{
+		return nextSequence;
+	}
+
+	/**
+	 * @return true if the requested offset was no longer retained and the batch starts at the oldest retained event instead. The consumer
+	 *         missed events and must catch up some other way, typically by walking the whole cabinet.
+	 */
+	public boolean isEventsExpired()
+	{
+		return eventsExpired;
+	}
+}
@@ -0,0 +1,68 @@
+package net.hit.storage;
+
+import java.util.UUID;
+
+/**
+ * A change made to a cabinet as recorded by a {@link ChangeJournal}.
+ */
+public class ChangeEvent {
+
+	/**
+	 * The kind of change
+	 */
+	public enum Type {
+		/** the document was stored, either created or replaced */
+		STORED,
+		/** the document was deleted */
+		DELETED
+	}
+
+	private long	sequence;
+	private Type	type;
+	private UUID	docID;
+	private long	timestamp;
+
+	ChangeEvent(long sequence, Type type, UUID docID, long timestamp) {
+		this.sequence = sequence;
+		this.type = type;
+		this.docID = docID;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * @return the position of this event in the cabinet's journal
+	 */
+	public long getSequence()
+	{
+		return sequence;
+	}
+
+	/**
+	 * @return the kind of change
+	 */
+	public Type getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @return the ID of the changed document
+	 */
+	public UUID getDocID()
+	{
+		return docID;
+	}
+
+	/**
+	 * @return the time of the change in milliseconds since the epoch
+	 */
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("#%d %s %s", sequence, type, docID);
+	}
+}
@@ -0,0 +1,240 @@
+package net.hit.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the changes made to the cabinets of a store.
+ *
+ * Every cabinet has its own journal in a folder named after it under the journal root. Each event receives the next sequence number of its
+ * cabinet, starting at 0, so a consumer only needs to remember the sequence it should read from next to process the changes incrementally.
+ * Consumers can keep that offset wherever they like or commit it to the journal under a name of their choosing.
+ *
+ * Appended events are written in batches, either once enough are pending or after the flush interval. They only become visible to readers
+ * once written. Events still pending when the process dies are lost, {@link #close()} writes them.
+ *
+ * Segments whose events are all older than the retention period are deleted periodically. A consumer reading from an offset that is no
+ * longer retained is told so by {@link ChangeBatch#isEventsExpired()}.
+ */
+public class ChangeJournal implements Closeable {
+
+	/** Default number of pending events that triggers a write */
+	public static final int												DEFAULT_BATCH_SIZE							= 256;
+
+	/** Default maximum time an event stays pending */
+	public static final long											DEFAULT_FLUSH_INTERVAL_MILLIS		= 100;
+
+	/** Default time events are retained */
+	public static final long											DEFAULT_RETENTION_MILLIS				= TimeUnit.DAYS.toMillis(7);
+
+	private static final long											PURGE_INTERVAL_MILLIS						= TimeUnit.MINUTES.toMillis(1);
+
+	private static final Logger										log															= LoggerFactory.getLogger(ChangeJournal.class);
+
+	private Path																	journalRoot;
+	private int																		batchSize;
+	private long																	retentionMillis;
+	private Map<String, CabinetJournal>						cabinets												= new ConcurrentHashMap<>();
+	private ScheduledExecutorService							background;
+
+	/**
+	 * Creates a journal with the default batching and retention.
+	 *
+	 * @param journalRoot
+	 *          the journal's root path
+	 * @throws IOException
+	 *           if the path cannot be created if it does not exist
+	 */
+	public ChangeJournal(Path journalRoot) throws IOException {
+		this(journalRoot, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_RETENTION_MILLIS);
+	}
+
+	/**
+	 * @param journalRoot
+	 *          the journal's root path
+	 * @param batchSize
+	 *          number of pending events that triggers a write
+	 * @param flushIntervalMillis
+	 *          maximum time an event stays pending
+	 * @param retentionMillis
+	 *          time events are retained
+	 * @throws IOException
+	 *           if the path cannot be created if it does not exist
+	 */
+	public ChangeJournal(Path journalRoot, int batchSize, long flushIntervalMillis, long retentionMillis) throws IOException {
+		this.journalRoot = journalRoot;
+		this.batchSize = batchSize;
+		this.retentionMillis = retentionMillis;
+		Files.createDirectories(this.journalRoot);
+
+		this.background = Executors.newSingleThreadScheduledExecutor(r ->
+			{
+				Thread thread = new Thread(r, "change-journal-" + journalRoot.getFileName());
+				thread.setDaemon(true);
+				return thread;
+			});
+		this.background.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+		this.background.scheduleWithFixedDelay(this::purgeQuietly, PURGE_INTERVAL_MILLIS, PURGE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Records a change.
+	 *
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @param type
+	 *          the kind of change
+	 * @param docID
+	 *          the ID of the changed document
+	 * @return the sequence of the event
+	 * @throws IOException
+	 *           if the batch this event completed could not be written
+	 */
+	public long append(String cabinetName, ChangeEvent.Type type, UUID docID) throws IOException
+	{
+		return this.journalFor(cabinetName).append(type, docID);
+	}
+
+	/**
+	 * Reads a batch of events.
+	 *
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @param fromSequence
+	 *          the sequence of the first event to read, usually the {@link ChangeBatch#getNextSequence()} of the previous batch
+	 * @param maxEvents
+	 *          the maximum number of events to read
+	 * @return the events following fromSequence that were written so far
+	 * @throws IOException
+	 *           if the journal could not be read
+	 */
+	public ChangeBatch read(String cabinetName, long fromSequence, int maxEvents) throws IOException
+	{
+		return this.journalFor(cabinetName).read(fromSequence, maxEvents);
+	}
+
+	/**
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @param consumerName
+	 *          the consumer's Name
+	 * @return the offset last committed by the consumer, 0 if it never did
+	 * @throws IOException
+	 *           if the offset could not be read
+	 */
+	public long getCommittedOffset(String cabinetName, String consumerName) throws IOException
+	{
+		return this.journalFor(cabinetName).committedOffset(consumerName);
+	}
+
+	/**
+	 * Saves the offset a consumer should resume reading from.
+	 *
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @param consumerName
+	 *          the consumer's Name
+	 * @param nextSequence
+	 *          the offset to resume from
+	 * @throws IOException
+	 *           if the offset could not be written
+	 */
+	public void commitOffset(String cabinetName, String consumerName, long nextSequence) throws IOException
+	{
+		this.journalFor(cabinetName).commitOffset(consumerName, nextSequence);
+	}
+
+	/**
+	 * Writes the pending events of every cabinet.
+	 *
+	 * @throws IOException
+	 *           if the events could not be written
+	 */
+	public void flush() throws IOException
+	{
+		for (CabinetJournal journal : this.cabinets.values()) {
+			journal.flush();
+		}
+	}
+
+	/**
+	 * Deletes the events older than the retention period, from the journals of every cabinet found under the journal root whether this
+	 * process used them or not.
+	 *
+	 * @throws IOException
+	 *           if the journal root could not be listed or a segment could not be deleted
+	 */
+	public void purge() throws IOException
+	{
+		long cutoff = System.currentTimeMillis() - this.retentionMillis;
+		try (DirectoryStream<Path> cabinetJournalRoots = Files.newDirectoryStream(this.journalRoot, Files::isDirectory)) {
+			for (Path cabinetJournalRoot : cabinetJournalRoots) {
+				CabinetJournal.purge(cabinetJournalRoot, cutoff);
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending events and stops the background flushes.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.background.shutdown();
+		try {
+			this.background.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (CabinetJournal journal : this.cabinets.values()) {
+			journal.close();
+		}
+		this.cabinets.clear();
+	}
+
+	private CabinetJournal journalFor(String cabinetName)
+	{
+		return this.cabinets.computeIfAbsent(cabinetName, name ->
+			{
+				Path cabinetJournalRoot = this.journalRoot.resolve(name);
+				try {
+					return CabinetJournal.open(cabinetJournalRoot, this.batchSize);
+				}
+				catch (IOException e) {
+					throw new RuntimeException(String.format("Could not open the journal [%s]", cabinetJournalRoot.toAbsolutePath()), e);
+				}
+			});
+	}
+
+	private void flushQuietly()
+	{
+		try {
+			this.flush();
+		}
+		catch (IOException | RuntimeException e) {
+			log.error("Could not write the pending journal events", e);
+		}
+	}
+
+	private void purgeQuietly()
+	{
+		try {
+			this.purge();
+		}
+		catch (IOException | RuntimeException e) {
+			log.error("Could not purge the expired journal events", e);
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package net.hit.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Function that converts the content of a ByteBuffer into the parameterized type instance
+ * 
+ * Variant of {@link DocReaderFunction} that lets the store hand over a buffer it reuses instead of a freshly allocated byte array.
+ * Essentially reverts the operation done by a {@link DocStreamWriterFunction}.
+ *
+ * @param <Out>
+ *          the type to convert to
+ */
+public interface DocBufferReaderFunction<Out> {
+
+	/**
+	 * Convert the remaining bytes of a buffer into an instance of parametersized type.
+	 * 
+	 * The buffer is only valid for the duration of the call, the returned instance must not hold on to it.
+	 * 
+	 * @param in
+	 *          the buffer positioned on the document's first byte
+	 * @return an instance of Type <Out>
+	 */
+	public Out convert(ByteBuffer in);
+}
@@ -0,0 +1,33 @@
+package net.hit.storage;
+
+import java.util.UUID;
+
+/**
+ * Identifies a document across the cabinets of a store, used as a map key by the stores that keep per document state in memory.
+ */
+final class DocKey {
+	final String	cabinetName;
+	final UUID		docId;
+
+	DocKey(String cabinetName, UUID docId) {
+		this.cabinetName = cabinetName;
+		this.docId = docId;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * this.cabinetName.hashCode() + this.docId.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof DocKey)) return false;
+		DocKey other = (DocKey) obj;
+		return this.docId.equals(other.docId) && this.cabinetName.equals(other.cabinetName);
+	}
+
+	@Override
+	public String toString() {
+		return this.cabinetName + "/" + this.docId;
+	}
+}
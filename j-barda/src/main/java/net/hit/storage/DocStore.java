@@ -1,5 +1,9 @@
 package net.hit.storage;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -8,7 +12,7 @@ import java.util.UUID;
  * The identifier is usually provided as a UUID. The document content is provided as string or as object and a document serializer can be
  * registered for a given type.
  */
-public interface DocStore {
+public interface DocStore extends Closeable {
 
 	/**
 	 * Store the provided bytes as a document under the id and cabinet
@@ -54,4 +58,103 @@ public interface DocStore {
 	 * @return an instance
 	 */
 	<OUT> OUT getDocument(String cabinetName, UUID docID, DocType<OUT> docType);
+
+	/**
+	 * Removes a document from the cabinet, whatever the DocTypes it is stored as.
+	 * 
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @param docID
+	 *          the Document's ID
+	 * @return true if there was a document to remove
+	 * @throws UnsupportedOperationException
+	 *           by default, for stores that cannot remove documents
+	 */
+	default boolean deleteDocument(String cabinetName, UUID docID) {
+		throw new UnsupportedOperationException(String.format("The store %s cannot delete documents", this.getClass().getName()));
+	}
+
+	/**
+	 * Tells if a document with the given ID exists in the cabinet, whatever its DocType.
+	 * 
+	 * The default implementation only finds documents stored as bytes, stores holding other DocTypes should override it.
+	 * 
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @param docID
+	 *          the Document's ID
+	 * @return true if the document is present in the cabinet
+	 */
+	default boolean exists(String cabinetName, UUID docID) {
+		return this.findDocumentBytes(cabinetName, docID).isPresent();
+	}
+
+	/**
+	 * Lists the DocTypes a document is stored as.
+	 * 
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @param docID
+	 *          the Document's ID
+	 * @return the names of the DocTypes of the document, empty if there is no such document
+	 * @throws UnsupportedOperationException
+	 *           by default, for stores that cannot list them
+	 */
+	default Set<String> listDocTypes(String cabinetName, UUID docID) {
+		throw new UnsupportedOperationException(String.format("The store %s cannot list the DocTypes of a document", this.getClass().getName()));
+	}
+
+	/**
+	 * Non throwing variant of {@link #getDocumentBytes(String, UUID)}.
+	 * 
+	 * The default implementation takes any failure of {@link #getDocumentBytes(String, UUID)} for a missing document, stores able to tell
+	 * them apart should override it.
+	 * 
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @param docID
+	 *          the Document's ID
+	 * @return the document Bytes or empty if there is no such document
+	 */
+	default Optional<byte[]> findDocumentBytes(String cabinetName, UUID docID) {
+		try {
+			return Optional.of(this.getDocumentBytes(cabinetName, docID));
+		}
+		catch (RuntimeException e) {
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Non throwing variant of {@link #getDocument(String, UUID, DocType)}.
+	 * 
+	 * The default implementation takes any failure of {@link #getDocument(String, UUID, DocType)} for a missing document, stores able to
+	 * tell them apart should override it.
+	 * 
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @param docID
+	 *          the Document's ID
+	 * @param docType
+	 *          the docType to describe the object
+	 * @return an instance or empty if there is no such document
+	 */
+	default <OUT> Optional<OUT> findDocument(String cabinetName, UUID docID, DocType<OUT> docType) {
+		try {
+			return Optional.of(this.getDocument(cabinetName, docID, docType));
+		}
+		catch (RuntimeException e) {
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Release whatever the store holds on to. Stores that keep state in memory must persist it here.
+	 * 
+	 * @throws IOException
+	 *           if the store could not persist its state
+	 */
+	@Override
+	default void close() throws IOException {
+	}
 }
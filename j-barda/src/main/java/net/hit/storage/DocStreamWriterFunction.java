@@ -0,0 +1,25 @@
+package net.hit.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Function that writes a given object to a stream.
+ *
+ * Variant of {@link DocWriterFunction} that lets the store provide a reusable buffer instead of receiving a freshly allocated byte array.
+ * Essentially reverts the operation done by {@link DocBufferReaderFunction}
+ * 
+ * @param <IN>
+ *          the type this converter can use
+ */
+public interface DocStreamWriterFunction<IN> {
+	/**
+	 * @param objectToWrite
+	 *          the Object to be converted in bytes
+	 * @param out
+	 *          the stream receiving the bytes this object converts to
+	 * @throws IOException
+	 *           if the stream could not be written to
+	 */
+	public void convert(IN objectToWrite, OutputStream out) throws IOException;
+}
@@ -18,6 +18,9 @@ public abstract class DocType<T> {
 	private DocWriterFunction<T>	fileWriter;
 	private Class<T>							objectType;
 
+	private DocBufferReaderFunction<T>	bufferReader;
+	private DocStreamWriterFunction<T>	streamWriter;
+
 	/**
 	 * A short name for this DocType
 	 * 
@@ -41,6 +44,35 @@ public abstract class DocType<T> {
 		return fileWriter;
 	}
 
+	/**
+	 * The reader stores use to convert a document without first copying it out of their own buffer.
+	 * 
+	 * Falls back on copying the buffer for the {@link #getReader()} function when no buffer reader was set.
+	 * 
+	 * @return the reader function that converts a buffer to the proper document type
+	 */
+	public DocBufferReaderFunction<T> getBufferReader() {
+		if (this.bufferReader != null) return this.bufferReader;
+		return buffer ->
+			{
+				byte[] bytes = new byte[buffer.remaining()];
+				buffer.get(bytes);
+				return this.getReader().convert(bytes);
+			};
+	}
+
+	/**
+	 * The writer stores use to convert a document straight into their own buffer.
+	 * 
+	 * Falls back on writing the bytes produced by the {@link #getWriter()} function when no stream writer was set.
+	 * 
+	 * @return the Writer function that writes the object to a stream
+	 */
+	public DocStreamWriterFunction<T> getStreamWriter() {
+		if (this.streamWriter != null) return this.streamWriter;
+		return (object, out) -> out.write(this.getWriter().convert(object));
+	}
+
 	/**
 	 * accessor to retain runtime type information lost to type erasure of Java's generic implementation.
 	 * 
@@ -71,4 +103,14 @@ public abstract class DocType<T> {
 	{
 		this.fileWriter = fileWriter;
 	}
+
+	protected void setBufferReader(DocBufferReaderFunction<T> bufferReader)
+	{
+		this.bufferReader = bufferReader;
+	}
+
+	protected void setStreamWriter(DocStreamWriterFunction<T> streamWriter)
+	{
+		this.streamWriter = streamWriter;
+	}
 }
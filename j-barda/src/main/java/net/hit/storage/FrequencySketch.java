@@ -0,0 +1,71 @@
+package net.hit.storage;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count-min sketch estimating how often documents are accessed, in constant memory whatever the number of documents.
+ *
+ * Estimates may overcount, never undercount. Once as many accesses as ten times the width of the sketch were recorded every counter is
+ * halved, so the estimates reflect recent accesses rather than the whole history.
+ */
+class FrequencySketch {
+
+	private static final int		DEPTH	= 4;
+	private static final int[]	SEEDS	= { 0x97CB3127, 0xB2A6F1C9, 0x6B5F9A3D, 0xE3C5A7B1 };
+
+	private AtomicIntegerArray[]	rows			= new AtomicIntegerArray[DEPTH];
+	private int										mask;
+	private long									sampleSize;
+	private AtomicLong						additions	= new AtomicLong();
+
+	/**
+	 * @param width
+	 *          the number of counters per row, rounded up to a power of two
+	 */
+	FrequencySketch(int width) {
+		int size = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+		for (int i = 0; i < DEPTH; i++) {
+			this.rows[i] = new AtomicIntegerArray(size);
+		}
+		this.mask = size - 1;
+		this.sampleSize = 10L * size;
+	}
+
+	void increment(Object key)
+	{
+		int hash = key.hashCode();
+		for (int i = 0; i < DEPTH; i++) {
+			this.rows[i].incrementAndGet(indexOf(hash, i));
+		}
+		if (this.additions.incrementAndGet() % this.sampleSize == 0)
+		{
+			this.age();
+		}
+	}
+
+	int frequency(Object key)
+	{
+		int hash = key.hashCode();
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < DEPTH; i++) {
+			frequency = Math.min(frequency, this.rows[i].get(indexOf(hash, i)));
+		}
+		return frequency;
+	}
+
+	private void age()
+	{
+		for (AtomicIntegerArray row : this.rows) {
+			for (int i = 0; i < row.length(); i++) {
+				row.set(i, row.get(i) >>> 1);
+			}
+		}
+	}
+
+	private int indexOf(int hash, int row)
+	{
+		int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+		return (h ^ h >>> 16) & this.mask;
+	}
+}
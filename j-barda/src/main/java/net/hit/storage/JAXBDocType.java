@@ -1,9 +1,10 @@
 package net.hit.storage;
 
 import java.beans.Introspector;
-import java.io.StringReader;
-import java.io.StringWriter;
-import java.nio.charset.StandardCharsets;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import javax.xml.bind.DataBindingException;
 import javax.xml.bind.JAXBContext;
@@ -52,15 +53,28 @@ public class JAXBDocType<T> extends DocType<T> {
 		this.classForTypeParam = classForTypeParameter;
 		this.setFileWriter(obj ->
 			{
-				return marshallEvent(obj).getBytes(StandardCharsets.UTF_8);
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				marshallEvent(obj, out);
+				return out.toByteArray();
 			});
 		this.setFileReader(objBytes ->
 			{
-				return unmarshallEvent(new String(objBytes, StandardCharsets.UTF_8));
+				return unmarshallEvent(new ByteArrayInputStream(objBytes));
+			});
+		this.setStreamWriter((obj, out) ->
+			{
+				marshallEvent(obj, out);
+			});
+		this.setBufferReader(objBuffer ->
+			{
+				return unmarshallEvent(new ByteBufferInputStream(objBuffer));
 			});
 	}
 
-	private String marshallEvent(T object)
+	/**
+	 * Marshals straight to the stream, the marshaller encodes in UTF-8 by default.
+	 */
+	private void marshallEvent(T object, OutputStream out)
 	{
 		try {
 			@SuppressWarnings("unchecked")
@@ -72,16 +86,14 @@ public class JAXBDocType<T> extends DocType<T> {
 			Marshaller marshaller = jaxb.createMarshaller();
 			// marshaller.setProperty("jaxb.fragment", true);
 
-			StringWriter writer = new StringWriter();
-			marshaller.marshal(jaxbEvent, writer);
-			return writer.toString();
+			marshaller.marshal(jaxbEvent, out);
 		}
 		catch (JAXBException e) {
 			throw new DataBindingException(e);
 		}
 	}
 
-	private T unmarshallEvent(String str)
+	private T unmarshallEvent(InputStream in)
 	{
 		try {
 			// JAXBElement<T> jaxbEvent = new JAXBElement<T>(new QName(Introspector.decapitalize(this.classForTypeParam.getSimpleName())),
@@ -93,7 +105,7 @@ public class JAXBDocType<T> extends DocType<T> {
 			Unmarshaller umar = jaxb.createUnmarshaller();
 			// umar.setProperty("jaxb.fragment", true);
 
-			Source src = new StreamSource(new StringReader(str));
+			Source src = new StreamSource(in);
 			JAXBElement<T> jaxbEvent = umar.unmarshal(src, this.classForTypeParam);
 			return jaxbEvent.getValue();
 		}
@@ -0,0 +1,110 @@
+package net.hit.storage;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * DocStore decorator recording every store and delete in a {@link ChangeJournal}.
+ *
+ * The change is journaled once the decorated store accepted it so consumers never hear of a document they cannot read. Reads go straight
+ * to the decorated store.
+ */
+public class JournalingDocStore implements DocStore {
+
+	private DocStore			delegate;
+	private ChangeJournal	journal;
+
+	/**
+	 * @param delegate
+	 *          the store actually holding the documents
+	 * @param journal
+	 *          the journal receiving the changes, closed along with this store
+	 */
+	public JournalingDocStore(DocStore delegate, ChangeJournal journal) {
+		this.delegate = delegate;
+		this.journal = journal;
+	}
+
+	/**
+	 * @return the journal the changes are recorded in
+	 */
+	public ChangeJournal getJournal()
+	{
+		return this.journal;
+	}
+
+	@Override
+	public void storeDocument(String cabinetName, UUID docId, byte[] document) {
+		this.delegate.storeDocument(cabinetName, docId, document);
+		this.record(cabinetName, ChangeEvent.Type.STORED, docId);
+	}
+
+	@Override
+	public <IN> void storeDocument(String cabinetName, UUID docId, IN document, DocType<IN> docType) {
+		this.delegate.storeDocument(cabinetName, docId, document, docType);
+		this.record(cabinetName, ChangeEvent.Type.STORED, docId);
+	}
+
+	@Override
+	public boolean deleteDocument(String cabinetName, UUID docID) {
+		boolean deleted = this.delegate.deleteDocument(cabinetName, docID);
+		if (deleted)
+		{
+			this.record(cabinetName, ChangeEvent.Type.DELETED, docID);
+		}
+		return deleted;
+	}
+
+	@Override
+	public byte[] getDocumentBytes(String cabinetName, UUID docID) {
+		return this.delegate.getDocumentBytes(cabinetName, docID);
+	}
+
+	@Override
+	public <OUT> OUT getDocument(String cabinetName, UUID docID, DocType<OUT> docType) {
+		return this.delegate.getDocument(cabinetName, docID, docType);
+	}
+
+	@Override
+	public boolean exists(String cabinetName, UUID docID) {
+		return this.delegate.exists(cabinetName, docID);
+	}
+
+	@Override
+	public Set<String> listDocTypes(String cabinetName, UUID docID) {
+		return this.delegate.listDocTypes(cabinetName, docID);
+	}
+
+	@Override
+	public Optional<byte[]> findDocumentBytes(String cabinetName, UUID docID) {
+		return this.delegate.findDocumentBytes(cabinetName, docID);
+	}
+
+	@Override
+	public <OUT> Optional<OUT> findDocument(String cabinetName, UUID docID, DocType<OUT> docType) {
+		return this.delegate.findDocument(cabinetName, docID, docType);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			this.journal.close();
+		}
+		finally {
+			this.delegate.close();
+		}
+	}
+
+	private void record(String cabinetName, ChangeEvent.Type type, UUID docId)
+	{
+		try {
+			this.journal.append(cabinetName, type, docId);
+		}
+		catch (IOException e) {
+			// TODO change this to a proper exception and make part of the DocStore contract
+			throw new RuntimeException(String.format("Could not journal the change of document [%s] in cabinet [%s]", docId, cabinetName), e);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package net.hit.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer acquired from a {@link BufferPool}.
+ * 
+ * It is filled either as an OutputStream or straight from a channel and its content is exposed as a ByteBuffer over the backing array, no
+ * copy involved. Closing the buffer gives it back to its pool, nothing obtained from it may be used afterwards.
+ */
+public class PooledBuffer extends OutputStream {
+
+	private BufferPool	pool;
+	private byte[]			bytes;
+	private int					count;
+	private boolean			released;
+
+	PooledBuffer(BufferPool pool, int initialCapacity) {
+		this.pool = pool;
+		this.bytes = new byte[initialCapacity];
+	}
+
+	@Override
+	public void write(int b) {
+		this.ensureCapacity(this.count + 1);
+		this.bytes[this.count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		this.ensureCapacity(this.count + len);
+		System.arraycopy(b, off, this.bytes, this.count, len);
+		this.count += len;
+	}
+
+	/**
+	 * Replaces the content of this buffer with exactly length bytes read from the channel.
+	 * 
+	 * @param channel
+	 *          the channel to read from
+	 * @param length
+	 *          the number of bytes to read
+	 * @return the content read
+	 * @throws IOException
+	 *           if the channel could not be read or ended before length bytes
+	 */
+	public ByteBuffer readFully(ReadableByteChannel channel, int length) throws IOException
+	{
+		this.reset();
+		this.ensureCapacity(length);
+		ByteBuffer target = ByteBuffer.wrap(this.bytes, 0, length);
+		while (target.hasRemaining()) {
+			if (channel.read(target) < 0) { throw new EOFException(String.format("Channel ended after %d of %d bytes", target.position(), length)); }
+		}
+		this.count = length;
+		return this.asByteBuffer();
+	}
+
+	/**
+	 * @return a view over the content of this buffer
+	 */
+	public ByteBuffer asByteBuffer()
+	{
+		return ByteBuffer.wrap(this.bytes, 0, this.count);
+	}
+
+	/**
+	 * @return the number of bytes held
+	 */
+	public int size()
+	{
+		return this.count;
+	}
+
+	/**
+	 * Empties the buffer, keeping its capacity.
+	 */
+	public void reset()
+	{
+		this.count = 0;
+	}
+
+	void reuse()
+	{
+		this.released = false;
+		this.reset();
+	}
+
+	int capacity()
+	{
+		return this.bytes.length;
+	}
+
+	private void ensureCapacity(int capacity)
+	{
+		if (capacity < 0) { throw new OutOfMemoryError("Document too large for a buffer"); }
+		if (capacity > this.bytes.length)
+		{
+			this.bytes = Arrays.copyOf(this.bytes, Math.max(capacity, Math.min(Integer.MAX_VALUE - 8, this.bytes.length * 2)));
+		}
+	}
+
+	/**
+	 * Gives this buffer back to its pool.
+	 */
+	@Override
+	public void close() {
+		if (this.released) return;
+		this.released = true;
+		this.pool.release(this);
+	}
+}
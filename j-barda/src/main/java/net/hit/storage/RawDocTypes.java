@@ -0,0 +1,26 @@
+package net.hit.storage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pass-through DocTypes moving the stored bytes as they are, used by the stores that handle documents without knowing their DocType.
+ */
+final class RawDocTypes {
+
+	/** Name of the DocType documents stored as plain bytes are filed under */
+	static final String													DEFAULT_NAME	= "bytes";
+
+	private static final Map<String, DocType<byte[]>>	docTypes			= new ConcurrentHashMap<>();
+
+	private RawDocTypes() {
+	}
+
+	/**
+	 * @return a DocType storing the bytes as they are under the given name
+	 */
+	static DocType<byte[]> of(String docTypeName)
+	{
+		return docTypes.computeIfAbsent(docTypeName, name -> new DocType<byte[]>(name, in -> in, objectToWrite -> objectToWrite) {});
+	}
+}
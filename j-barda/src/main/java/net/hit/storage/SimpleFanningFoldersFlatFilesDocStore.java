@@ -1,9 +1,36 @@
 package net.hit.storage;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * Stores documents in a folder hierarchy from the DocStore Root.
@@ -31,11 +58,58 @@ import java.util.UUID;
  *
  * Right not only binary form is supported, thus all files receive the .bytes extension
  *
+ * Documents are converted through the {@link DocType#getStreamWriter()} and {@link DocType#getBufferReader()} functions using buffers from
+ * a {@link BufferPool} and moved to and from the files with channels, so that no intermediate copy of the document is made.
+ *
+ * Each cabinet is guarded by a Bloom filter of the IDs stored in it so that lookups for absent documents are answered without touching the
+ * disk. Filters are kept in memory, saved in the cabinet folder on {@link #close()} and loaded back the next time the cabinet is used. A
+ * cabinet without a saved filter (first use, or a store that was not closed properly) has its filter rebuilt by walking the cabinet, sized
+ * for the number of documents found. The first access to such a cabinet waits for the walk, accesses to other cabinets do not.
+ *
+ * With the {@link BucketLayout#TIME_ORDERED} layout, documents whose ID is a time ordered UUID (see {@link TimeOrderedUUIDs}) are bucketed
+ * by their creation time instead, under a "t" folder of the cabinet. Documents written together then share their folders and
+ * {@link #scanRange(String, Instant, Instant)} only walks the folders of the requested time range. Other IDs are still hashed. The layout
+ * decides where documents are looked for, so it is recorded in a marker file of the store root on first use and opening the root with
+ * another layout fails. Roots created before the marker existed are marked with the layout they are next opened with.
  *
  */
 public class SimpleFanningFoldersFlatFilesDocStore implements DocStore {
 
-	private Path						storeRoot;
+	/**
+	 * How documents are spread over the bucket folders
+	 */
+	public enum BucketLayout {
+		/** buckets are picked from the hashcode of the ID */
+		HASHED,
+		/** time ordered IDs are bucketed by creation time, the others are hashed */
+		TIME_ORDERED
+	}
+
+	/** Default number of documents per cabinet the filters are sized for */
+	public static final int								DEFAULT_EXPECTED_DOCS_PER_CABINET	= 1_000_000;
+
+	/** Default false positive probability of the filters */
+	public static final double						DEFAULT_FILTER_FPP								= 0.01;
+
+	private static final int							UUID_STRING_LENGTH								= 36;
+
+	private static final Logger						log																= LoggerFactory.getLogger(SimpleFanningFoldersFlatFilesDocStore.class);
+
+	static final String										TIME_BUCKETS_FOLDER								= "t";
+
+	static final String										LAYOUT_FILE_NAME									= ".layout";
+
+	/** bits of the creation time each level of time buckets is named after, most significant first, down to 256ms leaves */
+	private static final int[]						TIME_BUCKET_BITS									= { 16, 8, 8, 8 };
+	private static final int[]						TIME_BUCKET_SHIFTS								= { 32, 24, 16, 8 };
+
+	private Path													storeRoot;
+	private BucketLayout									layout;
+
+	private int														expectedDocsPerCabinet;
+	private double												filterFpp;
+	private Map<String, FutureTask<CabinetFilter>>	filters											= new ConcurrentHashMap<>();
+	private BufferPool										bufferPool												= new BufferPool();
 
 	private DocType<byte[]>	bytesDocType	= new DocType<byte[]>("bytes",
 																						new DocReaderFunction<byte[]>() {
@@ -53,7 +127,17 @@ public class SimpleFanningFoldersFlatFilesDocStore implements DocStore {
 																							}
 																						}
 																						)
-																						{};
+																						{
+																							{
+																								this.setBufferReader(in ->
+																									{
+																										byte[] bytes = new byte[in.remaining()];
+																										in.get(bytes);
+																										return bytes;
+																									});
+																								this.setStreamWriter((objectToWrite, out) -> out.write(objectToWrite));
+																							}
+																						};
 
 	/**
 	 * Create an instance at the given root directory.
@@ -62,16 +146,91 @@ public class SimpleFanningFoldersFlatFilesDocStore implements DocStore {
 	 * @param storeRoot
 	 *          the store's root path
 	 * @throws IOException
-	 *           if the path cannot be created if it does not exist
+	 *           if the path cannot be created if it does not exist, or if the store root was created with another bucket layout
 	 */
 	public SimpleFanningFoldersFlatFilesDocStore(Path storeRoot) throws IOException {
+		this(storeRoot, DEFAULT_EXPECTED_DOCS_PER_CABINET, DEFAULT_FILTER_FPP);
+	}
+
+	/**
+	 * Create an instance at the given root directory with custom sized cabinet filters.
+	 *
+	 * @param storeRoot
+	 *          the store's root path
+	 * @param expectedDocsPerCabinet
+	 *          number of documents per cabinet the filters are sized for
+	 * @param filterFpp
+	 *          false positive probability of the filters once they hold expectedDocsPerCabinet documents
+	 * @throws IOException
+	 *           if the path cannot be created if it does not exist, or if the store root was created with another bucket layout
+	 */
+	public SimpleFanningFoldersFlatFilesDocStore(Path storeRoot, int expectedDocsPerCabinet, double filterFpp) throws IOException {
+		this(storeRoot, BucketLayout.HASHED, expectedDocsPerCabinet, filterFpp);
+	}
+
+	/**
+	 * Create an instance at the given root directory with the given bucket layout.
+	 *
+	 * @param storeRoot
+	 *          the store's root path
+	 * @param layout
+	 *          how documents are spread over the bucket folders
+	 * @throws IOException
+	 *           if the path cannot be created if it does not exist, or if the store root was created with another bucket layout
+	 */
+	public SimpleFanningFoldersFlatFilesDocStore(Path storeRoot, BucketLayout layout) throws IOException {
+		this(storeRoot, layout, DEFAULT_EXPECTED_DOCS_PER_CABINET, DEFAULT_FILTER_FPP);
+	}
+
+	/**
+	 * Create an instance at the given root directory with the given bucket layout and custom sized cabinet filters.
+	 *
+	 * @param storeRoot
+	 *          the store's root path
+	 * @param layout
+	 *          how documents are spread over the bucket folders
+	 * @param expectedDocsPerCabinet
+	 *          number of documents per cabinet the filters are sized for
+	 * @param filterFpp
+	 *          false positive probability of the filters once they hold expectedDocsPerCabinet documents
+	 * @throws IOException
+	 *           if the path cannot be created if it does not exist, or if the store root was created with another bucket layout
+	 */
+	public SimpleFanningFoldersFlatFilesDocStore(Path storeRoot, BucketLayout layout, int expectedDocsPerCabinet, double filterFpp) throws IOException {
 		this.storeRoot = storeRoot;
+		this.layout = layout;
+		this.expectedDocsPerCabinet = expectedDocsPerCabinet;
+		this.filterFpp = filterFpp;
 		Files.createDirectories(this.storeRoot);
+		this.checkLayout();
+	}
+
+	/**
+	 * Records the layout in the store root on first use, or checks it matches the recorded one.
+	 */
+	private void checkLayout() throws IOException {
+		Path layoutFile = this.storeRoot.resolve(LAYOUT_FILE_NAME);
+		byte[] marker = this.layout.name().getBytes(StandardCharsets.US_ASCII);
+		try {
+			Files.write(layoutFile, marker, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			return;
+		}
+		catch (FileAlreadyExistsException e) {
+			// created before, checked below
+		}
+		String recorded = new String(Files.readAllBytes(layoutFile), StandardCharsets.US_ASCII).trim();
+		if (recorded.isEmpty())
+		{
+			// left empty by a process that died while creating it
+			Files.write(layoutFile, marker);
+		}
+		else if (!recorded.equals(this.layout.name())) { throw new IOException(String.format("The store root [%s] was created with the %s bucket layout, it cannot be opened with the %s layout",
+																																		this.storeRoot.toAbsolutePath(), recorded, this.layout)); }
 	}
 
 	@Override
 	public void storeDocument(String cabinetName, UUID docId, byte[] document) {
-		this.storeDocument(cabinetName, docId, document, this.bytesDocType);
+		this.writeDocument(cabinetName, docId, this.bytesDocType.getDocTypeName(), ByteBuffer.wrap(document));
 	}
 
 	@Override
@@ -81,10 +240,35 @@ public class SimpleFanningFoldersFlatFilesDocStore implements DocStore {
 
 	@Override
 	public <IN> void storeDocument(String cabinetName, UUID docId, IN document, DocType<IN> docType) {
-		Path filePath = this.locateFile(cabinetName, docId, docType.getDocTypeName());
+		try (PooledBuffer buffer = this.bufferPool.acquire()) {
+			try {
+				docType.getStreamWriter().convert(document, buffer);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(String.format("Could not convert the document [%s] of cabinet [%s]", docId, cabinetName), e);
+			}
+			this.writeDocument(cabinetName, docId, docType.getDocTypeName(), buffer.asByteBuffer());
+		}
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffer as the document's file.
+	 *
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @param docId
+	 *          the Document's ID
+	 * @param docTypeName
+	 *          the name of the DocType the content was converted with
+	 * @param content
+	 *          the document's content
+	 */
+	protected void writeDocument(String cabinetName, UUID docId, String docTypeName, ByteBuffer content) {
+		Path filePath = this.locateFile(cabinetName, docId, docTypeName);
 		try {
 			Files.createDirectories(filePath.getParent());
-			Files.write(filePath, docType.getWriter().convert(document));
+			this.writeFile(filePath, content);
+			this.filterFor(cabinetName).put(docId);
 		}
 		catch (IOException e) {
 			// TODO change this to a proper exception and make part of the DocStore contract
@@ -92,12 +276,50 @@ public class SimpleFanningFoldersFlatFilesDocStore implements DocStore {
 		}
 	}
 
+	/**
+	 * Writes the remaining bytes of the buffer to a file whose folder already exists.
+	 *
+	 * @param filePath
+	 *          the document's file
+	 * @param content
+	 *          the document's content
+	 * @throws IOException
+	 *           if the file could not be written
+	 */
+	protected void writeFile(Path filePath, ByteBuffer content) throws IOException {
+		try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (content.hasRemaining()) {
+				channel.write(content);
+			}
+		}
+	}
+
+	/**
+	 * Reads a document's file in a pooled buffer and converts it.
+	 *
+	 * @param filePath
+	 *          the document's file
+	 * @param docType
+	 *          the docType to describe the object
+	 * @return the converted document
+	 * @throws IOException
+	 *           if the file could not be read, NoSuchFileException if it does not exist
+	 */
+	protected <OUT> OUT readDocument(Path filePath, DocType<OUT> docType) throws IOException {
+		try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ);
+				PooledBuffer buffer = this.bufferPool.acquire()) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) { throw new IOException(String.format("The file [%s] is too large to be read as a document", filePath)); }
+			return docType.getBufferReader().convert(buffer.readFully(channel, (int) size));
+		}
+	}
+
 	@Override
 	public <OUT> OUT getDocument(String cabinetName, UUID docID, DocType<OUT> docType) {
 		Path filePath = this.locateFile(cabinetName, docID, docType.getDocTypeName());
 
 		try {
-			return docType.getReader().convert(Files.readAllBytes(filePath));
+			return this.readDocument(filePath, docType);
 		}
 		catch (IOException e) {
 			// TODO change this to a proper exception and make part of the DocStore contract
@@ -105,7 +327,352 @@ public class SimpleFanningFoldersFlatFilesDocStore implements DocStore {
 		}
 	}
 
+	/**
+	 * The ID stays in the cabinet filter, lookups for a deleted document are answered by the disk like any false positive.
+	 */
+	@Override
+	public boolean deleteDocument(String cabinetName, UUID docID) {
+		if (!this.filterFor(cabinetName).mightContain(docID)) return false;
+
+		Path bucket = this.locateBucket(cabinetName, docID);
+		if (!Files.isDirectory(bucket)) return false;
+		boolean deleted = false;
+		try (DirectoryStream<Path> matches = Files.newDirectoryStream(bucket, docID.toString() + "*")) {
+			for (Path match : matches) {
+				deleted |= Files.deleteIfExists(match);
+			}
+			return deleted;
+		}
+		catch (IOException e) {
+			throw new RuntimeException(String.format("Could not delete the document [%s] from the bucket [%s] of the store", docID, bucket.toAbsolutePath()), e);
+		}
+	}
+
+	@Override
+	public boolean exists(String cabinetName, UUID docID) {
+		if (!this.filterFor(cabinetName).mightContain(docID)) return false;
+
+		Path bucket = this.locateBucket(cabinetName, docID);
+		if (!Files.isDirectory(bucket)) return false;
+		try (DirectoryStream<Path> matches = Files.newDirectoryStream(bucket, docID.toString() + "*")) {
+			return matches.iterator().hasNext();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(String.format("Could not list the bucket [%s] of the store", bucket.toAbsolutePath()), e);
+		}
+	}
+
+	@Override
+	public Set<String> listDocTypes(String cabinetName, UUID docID) {
+		if (!this.filterFor(cabinetName).mightContain(docID)) return Collections.emptySet();
+
+		Path bucket = this.locateBucket(cabinetName, docID);
+		if (!Files.isDirectory(bucket)) return Collections.emptySet();
+		Set<String> docTypeNames = new TreeSet<>();
+		try (DirectoryStream<Path> matches = Files.newDirectoryStream(bucket, docID.toString() + "*")) {
+			for (Path match : matches) {
+				docTypeNames.add(docTypeNameOf(match));
+			}
+			return docTypeNames;
+		}
+		catch (IOException e) {
+			throw new RuntimeException(String.format("Could not list the bucket [%s] of the store", bucket.toAbsolutePath()), e);
+		}
+	}
+
+	@Override
+	public Optional<byte[]> findDocumentBytes(String cabinetName, UUID docID) {
+		return this.findDocument(cabinetName, docID, this.bytesDocType);
+	}
+
+	@Override
+	public <OUT> Optional<OUT> findDocument(String cabinetName, UUID docID, DocType<OUT> docType) {
+		if (!this.filterFor(cabinetName).mightContain(docID)) return Optional.empty();
+
+		Path filePath = this.locateFile(cabinetName, docID, docType.getDocTypeName());
+		try {
+			return Optional.of(this.readDocument(filePath, docType));
+		}
+		catch (NoSuchFileException e) {
+			// false positive of the filter
+			return Optional.empty();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(String.format("Could not read the file [%s] from the store", filePath.toAbsolutePath()), e);
+		}
+	}
+
+	/**
+	 * Streams every document of a cabinet into a single archive file, reading the documents in parallel.
+	 *
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @param archive
+	 *          the archive file
+	 * @param resume
+	 *          if true and the archive is what an interrupted export left, keep the documents it already holds and only add the missing
+	 *          ones. Otherwise, a complete archive included, the archive is overwritten.
+	 * @return the throughput of the export
+	 * @throws IOException
+	 *           if the archive could not be written
+	 */
+	public ArchiveStats exportCabinet(String cabinetName, Path archive, boolean resume) throws IOException {
+		return new CabinetArchiver(this, this.archiverThreads()).exportCabinet(cabinetName, archive, resume);
+	}
+
+	/**
+	 * Loads every document of an archive made by {@link #exportCabinet(String, Path, boolean)} into a cabinet, writing them in batches.
+	 *
+	 * @param cabinetName
+	 *          the cabinet's Name, which may differ from the one the archive was exported from
+	 * @param archive
+	 *          the archive file
+	 * @return the throughput of the import
+	 * @throws IOException
+	 *           if the archive could not be read or is incomplete
+	 */
+	public ArchiveStats importCabinet(String cabinetName, Path archive) throws IOException {
+		return new CabinetArchiver(this, this.archiverThreads()).importCabinet(cabinetName, archive);
+	}
+
+	/**
+	 * Writes every document of a cabinet to a single immutable sorted table, to be served by a {@link SortedTableDocStore}.
+	 *
+	 * The cabinet is left untouched, it is up to the caller to stop writing to it beforehand and to remove it once the table is in service.
+	 *
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @param tableFile
+	 *          the table file, replaced once the table is complete
+	 * @return the number of documents frozen
+	 * @throws IOException
+	 *           if a document could not be read or the table could not be written
+	 */
+	public long freezeCabinet(String cabinetName, Path tableFile) throws IOException {
+		List<Path> documentFiles;
+		try (Stream<Path> files = this.listDocumentFiles(cabinetName)) {
+			documentFiles = files.collect(Collectors.toList());
+		}
+		return SortedTableWriter.write(cabinetName, documentFiles, tableFile);
+	}
+
+	private int archiverThreads() {
+		// transfers are bound by file system latency rather than CPU
+		return Runtime.getRuntime().availableProcessors() * 2;
+	}
+
+	/**
+	 * Saves the cabinet filters so they can be loaded back instead of being rebuilt.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (String cabinetName : this.filters.keySet()) {
+			this.filterFor(cabinetName).save();
+		}
+		this.filters.clear();
+	}
+
+	/**
+	 * The filter of a cabinet is loaded or rebuilt once: the first thread to need it publishes a pending load in the filters map then runs
+	 * it, the others wait for it. The load runs outside of the map so that a long rebuild does not hold up the other cabinets. A failed load
+	 * is withdrawn so the next access tries again.
+	 */
+	protected CabinetFilter filterFor(String cabinetName) {
+		FutureTask<CabinetFilter> load = this.filters.get(cabinetName);
+		if (load == null)
+		{
+			FutureTask<CabinetFilter> created = new FutureTask<>(() -> this.loadOrRebuildFilter(cabinetName));
+			load = this.filters.putIfAbsent(cabinetName, created);
+			if (load == null)
+			{
+				load = created;
+				created.run();
+			}
+		}
+		try {
+			return Uninterruptibles.getUninterruptibly(load);
+		}
+		catch (ExecutionException e) {
+			this.filters.remove(cabinetName, load);
+			throw new RuntimeException(String.format("Could not load the filter of cabinet [%s]", cabinetName), e.getCause());
+		}
+	}
+
+	private CabinetFilter loadOrRebuildFilter(String cabinetName) {
+		Path cabinetRoot = this.storeRoot.resolve(cabinetName);
+		CabinetFilter filter = CabinetFilter.load(cabinetRoot);
+		if (filter != null) return filter;
+		if (!Files.isDirectory(cabinetRoot)) return new CabinetFilter(cabinetRoot, this.expectedDocsPerCabinet, this.filterFpp);
+
+		// IDs are gathered before the filter is created so it can be sized for the cabinet as it is, with as much room again to grow
+		long start = System.nanoTime();
+		long[] ids = new long[2 * 1024];
+		int count = 0;
+		try (Stream<UUID> listed = this.listDocumentIds(cabinetName)) {
+			for (Iterator<UUID> it = listed.iterator(); it.hasNext();) {
+				UUID id = it.next();
+				if (2 * count == ids.length) ids = Arrays.copyOf(ids, 2 * ids.length);
+				ids[2 * count] = id.getMostSignificantBits();
+				ids[2 * count + 1] = id.getLeastSignificantBits();
+				count++;
+			}
+		}
+		int expectedInsertions = (int) Math.min(Integer.MAX_VALUE, Math.max(this.expectedDocsPerCabinet, 2L * count));
+		filter = new CabinetFilter(cabinetRoot, expectedInsertions, this.filterFpp);
+		for (int i = 0; i < count; i++) {
+			filter.put(new UUID(ids[2 * i], ids[2 * i + 1]));
+		}
+		log.info("Rebuilt the filter of cabinet [{}] from {} document files for {} documents in {} ms", cabinetName, count, expectedInsertions,
+							(System.nanoTime() - start) / 1_000_000);
+		return filter;
+	}
+
+	/**
+	 * Lists the IDs of the documents stored in a cabinet by walking its folder tree.
+	 *
+	 * The stream must be closed once consumed. An ID is listed once per DocType it is stored as.
+	 *
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @return the IDs of the documents of the cabinet
+	 */
+	protected Stream<UUID> listDocumentIds(String cabinetName) {
+		return this.listDocumentFiles(cabinetName).map(SimpleFanningFoldersFlatFilesDocStore::docIdOf);
+	}
+
+	/**
+	 * Lists the document files stored in a cabinet by walking its folder tree.
+	 *
+	 * The stream must be closed once consumed.
+	 *
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @return the document files of the cabinet
+	 */
+	protected Stream<Path> listDocumentFiles(String cabinetName) {
+		Path cabinetRoot = this.storeRoot.resolve(cabinetName);
+		if (!Files.isDirectory(cabinetRoot)) return Stream.empty();
+		try {
+			return Files.walk(cabinetRoot)
+									.filter(Files::isRegularFile)
+									.filter(p -> docIdOf(p) != null);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(String.format("Could not walk the cabinet [%s] of the store", cabinetRoot.toAbsolutePath()), e);
+		}
+	}
+
+	/**
+	 * @param documentFile
+	 *          a file of the store
+	 * @return the ID of the document held by the file or null if the file is not a document
+	 */
+	protected static UUID docIdOf(Path documentFile) {
+		String fileName = documentFile.getFileName().toString();
+		if (fileName.length() < UUID_STRING_LENGTH) return null;
+		try {
+			return UUID.fromString(fileName.substring(0, UUID_STRING_LENGTH));
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param documentFile
+	 *          a document file of the store
+	 * @return the name of the DocType the document was stored as
+	 */
+	protected static String docTypeNameOf(Path documentFile) {
+		String extention = documentFile.getFileName().toString().substring(UUID_STRING_LENGTH);
+		return extention.startsWith(".") ? extention.substring(1) : extention;
+	}
+
+	/**
+	 * @param docId
+	 *          the Document's ID
+	 * @param docTypeName
+	 *          the name of the DocType the document is stored as
+	 * @return the name of the document's file
+	 */
+	protected static String fileNameOf(UUID docId, String docTypeName) {
+		return locateFile(Paths.get(""), docId, docTypeName).getFileName().toString();
+	}
+
+	/**
+	 * Lists the time ordered documents of a cabinet created within a time range, in creation order.
+	 *
+	 * With the {@link BucketLayout#TIME_ORDERED} layout only the bucket folders overlapping the range are listed, otherwise the whole cabinet
+	 * is walked. The stream must be closed once consumed.
+	 *
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @param from
+	 *          the start of the range, inclusive
+	 * @param to
+	 *          the end of the range, exclusive
+	 * @return the IDs of the documents created within the range
+	 */
+	public Stream<UUID> scanRange(String cabinetName, Instant from, Instant to) {
+		long fromMillis = from.toEpochMilli();
+		long toMillis = to.toEpochMilli();
+
+		Stream<UUID> ids;
+		if (this.layout == BucketLayout.TIME_ORDERED)
+		{
+			Path timeRoot = this.storeRoot.resolve(cabinetName).resolve(TIME_BUCKETS_FOLDER);
+			if (!Files.isDirectory(timeRoot)) return Stream.empty();
+			ids = this.scanTimeBuckets(timeRoot, 0, 0, fromMillis, toMillis).map(SimpleFanningFoldersFlatFilesDocStore::docIdOf);
+		}
+		else
+		{
+			ids = this.listDocumentIds(cabinetName).sorted();
+		}
+		return ids.filter(TimeOrderedUUIDs::isTimeOrdered)
+							.filter(id -> TimeOrderedUUIDs.timestampOf(id) >= fromMillis && TimeOrderedUUIDs.timestampOf(id) < toMillis)
+							.distinct();
+	}
+
+	/**
+	 * Lists, in name order, the document files below the time bucket folders that overlap the range.
+	 *
+	 * @param prefix
+	 *          the creation time bits named by the folders above this one
+	 */
+	private Stream<Path> scanTimeBuckets(Path folder, int level, long prefix, long fromMillis, long toMillis) {
+		Stream<Path> children;
+		try {
+			children = Files.list(folder).sorted();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(String.format("Could not list the bucket [%s] of the store", folder.toAbsolutePath()), e);
+		}
+		if (level == TIME_BUCKET_BITS.length) return children.filter(p -> docIdOf(p) != null);
+
+		int shift = TIME_BUCKET_SHIFTS[level];
+		return children.flatMap(child ->
+			{
+				long bits;
+				try {
+					bits = Long.parseLong(child.getFileName().toString(), 16);
+				}
+				catch (NumberFormatException e) {
+					return Stream.empty();
+				}
+				long childPrefix = prefix << TIME_BUCKET_BITS[level] | bits;
+				long start = childPrefix << shift;
+				long end = childPrefix + 1 << shift;
+				if (start >= toMillis || end <= fromMillis) return Stream.empty();
+				return this.scanTimeBuckets(child, level + 1, childPrefix, fromMillis, toMillis);
+			});
+	}
+
 	protected Path locateBucket(String cabinetName, UUID key) {
+		if (this.layout == BucketLayout.TIME_ORDERED && TimeOrderedUUIDs.isTimeOrdered(key))
+		{
+			return this.locateTimeBucket(cabinetName, key);
+		}
+
 		int bucketPathID = key.hashCode();
 
 		String part4 = String.format("%02x", (byte) bucketPathID);
@@ -116,10 +683,28 @@ public class SimpleFanningFoldersFlatFilesDocStore implements DocStore {
 		return storeRoot.resolve(cabinetName).resolve(part1).resolve(part2).resolve(part3).resolve(part4);
 	}
 
+	/**
+	 * Time buckets are named after the creation time bits, the leaves holding 256ms worth of documents.
+	 */
+	protected Path locateTimeBucket(String cabinetName, UUID key) {
+		long timestamp = TimeOrderedUUIDs.timestampOf(key);
+
+		String part1 = String.format("%04x", timestamp >>> 32 & 0xFFFF);
+		String part2 = String.format("%02x", timestamp >>> 24 & 0xFF);
+		String part3 = String.format("%02x", timestamp >>> 16 & 0xFF);
+		String part4 = String.format("%02x", timestamp >>> 8 & 0xFF);
+
+		return storeRoot.resolve(cabinetName).resolve(TIME_BUCKETS_FOLDER).resolve(part1).resolve(part2).resolve(part3).resolve(part4);
+	}
+
 	protected Path locateFile(String cabinetName, UUID messageID, String extention) {
+		return locateFile(this.locateBucket(cabinetName, messageID), messageID, extention).toAbsolutePath();
+	}
+
+	private static Path locateFile(Path bucket, UUID messageID, String extention) {
 		if (extention == null) extention = "";
 		else if (!extention.isEmpty() && !extention.startsWith(".")) extention = "." + extention;
 
-		return this.locateBucket(cabinetName, messageID).resolve(messageID.toString() + extention).toAbsolutePath();
+		return bucket.resolve(messageID.toString() + extention);
 	}
 }
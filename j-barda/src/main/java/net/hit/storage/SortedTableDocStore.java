@@ -0,0 +1,335 @@
+package net.hit.storage;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * Read-only DocStore serving a single cabinet frozen by {@link SimpleFanningFoldersFlatFilesDocStore#freezeCabinet(String, Path)}.
+ *
+ * The whole table is memory-mapped and its sparse index is held on the heap. A lookup binary searches the index for the block that can
+ * hold the key then scans that block, documents are handed to the {@link DocType#getBufferReader()} straight from the mapped memory. No
+ * file is opened and no folder is looked up after construction.
+ *
+ * Only the cabinet the table was frozen from is served, every other cabinet is empty. All write operations throw an
+ * UnsupportedOperationException.
+ */
+public class SortedTableDocStore implements DocStore {
+
+	/** Maximum size of a single mapping, blocks never straddle two mappings */
+	static final long										MAX_REGION_SIZE	= 1L << 30;
+
+	private Path												tableFile;
+	private String											cabinetName;
+	private List<String>								typeNames;
+	private long												documentCount;
+
+	private long[]											blockFirstMsb;
+	private long[]											blockFirstLsb;
+	private short[]											blockFirstType;
+	private int[]												blockRegion;
+	private int[]												blockPosition;
+	private int[]												blockLength;
+	private List<MappedByteBuffer>			regions;
+
+	private DocType<byte[]>							bytesDocType		= new DocType<byte[]>("bytes") {
+																												{
+																													this.setBufferReader(in ->
+																														{
+																															byte[] bytes = new byte[in.remaining()];
+																															in.get(bytes);
+																															return bytes;
+																														});
+																												}
+																											};
+
+	/**
+	 * Opens and maps a frozen cabinet.
+	 *
+	 * @param tableFile
+	 *          the table file written by the freeze operation
+	 * @throws IOException
+	 *           if the file could not be mapped or is not a complete table
+	 */
+	public SortedTableDocStore(Path tableFile) throws IOException {
+		this.tableFile = tableFile;
+		try (FileChannel channel = FileChannel.open(tableFile, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < SortedTableWriter.HEADER_MAGIC.length + SortedTableWriter.TRAILER_LENGTH) { throw new IOException(String.format("The file [%s] is not a sorted table", tableFile)); }
+
+			ByteBuffer trailer = ByteBuffer.allocate(SortedTableWriter.TRAILER_LENGTH);
+			readFully(channel, trailer, size - SortedTableWriter.TRAILER_LENGTH);
+			trailer.flip();
+			long typesOffset = trailer.getLong();
+			long indexOffset = trailer.getLong();
+			this.documentCount = trailer.getLong();
+			byte[] magic = new byte[SortedTableWriter.TRAILER_MAGIC.length];
+			trailer.get(magic);
+			if (!Arrays.equals(magic, SortedTableWriter.TRAILER_MAGIC)) { throw new IOException(String.format("The sorted table [%s] is incomplete", tableFile)); }
+
+			ByteBuffer head = ByteBuffer.allocate((int) Math.min(typesOffset, SortedTableWriter.HEADER_MAGIC.length + 2 + 0xFFFF));
+			readFully(channel, head, 0);
+			head.flip();
+			DataInputStream headIn = new DataInputStream(new ByteBufferInputStream(head));
+			headIn.readFully(magic);
+			if (!Arrays.equals(magic, SortedTableWriter.HEADER_MAGIC)) { throw new IOException(String.format("The file [%s] is not a sorted table", tableFile)); }
+			this.cabinetName = headIn.readUTF();
+
+			ByteBuffer footer = ByteBuffer.allocate((int) (size - SortedTableWriter.TRAILER_LENGTH - typesOffset));
+			readFully(channel, footer, typesOffset);
+			footer.flip();
+			DataInputStream footerIn = new DataInputStream(new ByteBufferInputStream(footer));
+			List<String> types = new ArrayList<>();
+			for (int i = footerIn.readShort(); i > 0; i--) {
+				types.add(footerIn.readUTF());
+			}
+			this.typeNames = Collections.unmodifiableList(types);
+
+			footer.position((int) (indexOffset - typesOffset));
+			int blocks = footer.getInt();
+			this.blockFirstMsb = new long[blocks];
+			this.blockFirstLsb = new long[blocks];
+			this.blockFirstType = new short[blocks];
+			this.blockRegion = new int[blocks];
+			this.blockPosition = new int[blocks];
+			this.blockLength = new int[blocks];
+			this.regions = new ArrayList<>();
+
+			long regionStart = -1;
+			long regionEnd = -1;
+			long[] blockOffset = new long[blocks];
+			for (int i = 0; i < blocks; i++) {
+				this.blockFirstMsb[i] = footer.getLong();
+				this.blockFirstLsb[i] = footer.getLong();
+				this.blockFirstType[i] = footer.getShort();
+				blockOffset[i] = footer.getLong();
+				this.blockLength[i] = footer.getInt();
+
+				if (regionStart < 0 || blockOffset[i] + this.blockLength[i] - regionStart > MAX_REGION_SIZE)
+				{
+					if (regionStart >= 0)
+					{
+						this.regions.add(channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart));
+					}
+					regionStart = blockOffset[i];
+				}
+				regionEnd = blockOffset[i] + this.blockLength[i];
+				this.blockRegion[i] = this.regions.size();
+				this.blockPosition[i] = (int) (blockOffset[i] - regionStart);
+			}
+			if (regionStart >= 0)
+			{
+				this.regions.add(channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart));
+			}
+		}
+	}
+
+	/**
+	 * @return the name of the cabinet this table serves
+	 */
+	public String getCabinetName()
+	{
+		return this.cabinetName;
+	}
+
+	/**
+	 * @return the number of documents in the table
+	 */
+	public long getDocumentCount()
+	{
+		return this.documentCount;
+	}
+
+	@Override
+	public void storeDocument(String cabinetName, UUID docId, byte[] document) {
+		throw new UnsupportedOperationException(String.format("The sorted table [%s] is read-only", this.tableFile));
+	}
+
+	@Override
+	public <IN> void storeDocument(String cabinetName, UUID docId, IN document, DocType<IN> docType) {
+		throw new UnsupportedOperationException(String.format("The sorted table [%s] is read-only", this.tableFile));
+	}
+
+	@Override
+	public boolean deleteDocument(String cabinetName, UUID docID) {
+		throw new UnsupportedOperationException(String.format("The sorted table [%s] is read-only", this.tableFile));
+	}
+
+	@Override
+	public byte[] getDocumentBytes(String cabinetName, UUID docID) {
+		return this.getDocument(cabinetName, docID, this.bytesDocType);
+	}
+
+	@Override
+	public <OUT> OUT getDocument(String cabinetName, UUID docID, DocType<OUT> docType) {
+		ByteBuffer content = this.locate(cabinetName, docID, docType.getDocTypeName());
+		if (content == null) { throw new RuntimeException(String.format("No document [%s] of type [%s] in cabinet [%s] of the sorted table [%s]", docID,
+																																	docType.getDocTypeName(), cabinetName, this.tableFile)); }
+		return docType.getBufferReader().convert(content);
+	}
+
+	@Override
+	public boolean exists(String cabinetName, UUID docID) {
+		return this.locate(cabinetName, docID, null) != null;
+	}
+
+	@Override
+	public Set<String> listDocTypes(String cabinetName, UUID docID) {
+		Set<String> docTypeNames = new TreeSet<>();
+		for (String docTypeName : this.typeNames) {
+			if (this.locate(cabinetName, docID, docTypeName) != null) docTypeNames.add(docTypeName);
+		}
+		return docTypeNames;
+	}
+
+	@Override
+	public Optional<byte[]> findDocumentBytes(String cabinetName, UUID docID) {
+		return this.findDocument(cabinetName, docID, this.bytesDocType);
+	}
+
+	@Override
+	public <OUT> Optional<OUT> findDocument(String cabinetName, UUID docID, DocType<OUT> docType) {
+		ByteBuffer content = this.locate(cabinetName, docID, docType.getDocTypeName());
+		if (content == null) return Optional.empty();
+		return Optional.of(docType.getBufferReader().convert(content));
+	}
+
+	/**
+	 * Visits every document of the given DocType in ID order, reading the table sequentially.
+	 *
+	 * @param cabinetName
+	 *          the cabinet's Name
+	 * @param docType
+	 *          the docType to describe the object
+	 * @param action
+	 *          receives the ID and converted content of each document
+	 */
+	public <OUT> void forEach(String cabinetName, DocType<OUT> docType, BiConsumer<UUID, OUT> action)
+	{
+		short typeId = (short) this.typeNames.indexOf(docType.getDocTypeName());
+		if (!this.cabinetName.equals(cabinetName) || typeId < 0) return;
+
+		for (int block = 0; block < this.blockLength.length; block++) {
+			ByteBuffer records = this.block(block);
+			while (records.hasRemaining()) {
+				UUID docID = new UUID(records.getLong(), records.getLong());
+				short recordType = records.getShort();
+				ByteBuffer content = content(records);
+				if (recordType == typeId)
+				{
+					action.accept(docID, docType.getBufferReader().convert(content));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the mappings, the memory is released once they are garbage collected.
+	 */
+	@Override
+	public void close() {
+		this.regions = Collections.emptyList();
+	}
+
+	/**
+	 * @param docTypeName
+	 *          the DocType to look for or null for any
+	 * @return the content of the document or null if there is none
+	 */
+	private ByteBuffer locate(String cabinetName, UUID docID, String docTypeName)
+	{
+		if (!this.cabinetName.equals(cabinetName)) return null;
+		short typeId = 0;
+		if (docTypeName != null)
+		{
+			typeId = (short) this.typeNames.indexOf(docTypeName);
+			if (typeId < 0) return null;
+		}
+		long msb = docID.getMostSignificantBits();
+		long lsb = docID.getLeastSignificantBits();
+
+		// last block starting at or before the key, the key can still be the first one of a following block when looking for any DocType
+		int low = 0;
+		int high = this.blockLength.length - 1;
+		int block = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (compare(this.blockFirstMsb[mid], this.blockFirstLsb[mid], this.blockFirstType[mid], msb, lsb, typeId) <= 0)
+			{
+				block = mid;
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid - 1;
+			}
+		}
+
+		for (block = Math.max(block, 0); block < this.blockLength.length; block++) {
+			ByteBuffer records = this.block(block);
+			while (records.hasRemaining()) {
+				long recordMsb = records.getLong();
+				long recordLsb = records.getLong();
+				short recordType = records.getShort();
+				ByteBuffer content = content(records);
+
+				int order = docTypeName == null ? compare(recordMsb, recordLsb, (short) 0, msb, lsb, (short) 0) : compare(recordMsb, recordLsb, recordType, msb, lsb, typeId);
+				if (order == 0) return content;
+				if (order > 0) return null;
+			}
+		}
+		return null;
+	}
+
+	private ByteBuffer block(int block)
+	{
+		ByteBuffer records = this.regions.get(this.blockRegion[block]).duplicate();
+		records.position(this.blockPosition[block]);
+		records.limit(this.blockPosition[block] + this.blockLength[block]);
+		return records;
+	}
+
+	/**
+	 * @return the content of the record at the buffer's position, leaving the buffer on the next record
+	 */
+	private static ByteBuffer content(ByteBuffer records)
+	{
+		int length = records.getInt();
+		ByteBuffer content = records.slice();
+		content.limit(length);
+		records.position(records.position() + length);
+		return content;
+	}
+
+	/**
+	 * Same order as {@link UUID#compareTo(UUID)} then the DocType ID.
+	 */
+	private static int compare(long msbA, long lsbA, short typeA, long msbB, long lsbB, short typeB)
+	{
+		int order = Long.compare(msbA, msbB);
+		if (order == 0) order = Long.compare(lsbA, lsbB);
+		if (order == 0) order = Short.compare(typeA, typeB);
+		return order;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer target, long position) throws IOException
+	{
+		while (target.hasRemaining()) {
+			if (channel.read(target, position + target.position()) < 0) { throw new EOFException(String.format("Unexpected end of the sorted table at %d", position + target.position())); }
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package net.hit.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Writes the immutable sorted table served by {@link SortedTableDocStore}.
+ *
+ * The table is laid out as follow, all numbers big endian:
+ *
+ * <pre>
+ * header  : "JBSST001" | cabinet name (modified UTF-8)
+ * block*  : (id msb (8) | id lsb (8) | DocType id (2) | content length (4) | content)*
+ * types   : DocType count (2) | DocType name (modified UTF-8)*
+ * index   : block count (4) | (first id msb (8) | first id lsb (8) | first DocType id (2) | block offset (8) | block length (4))*
+ * trailer : types offset (8) | index offset (8) | document count (8) | "JBSSTEND"
+ * </pre>
+ *
+ * Records are sorted on their document ID then on their DocType ID, DocType IDs being the position of the DocType name in the types
+ * section. Blocks are filled with whole records until they reach {@link #BLOCK_SIZE}, the index holds the first key of each.
+ */
+class SortedTableWriter {
+
+	static final byte[]							HEADER_MAGIC		= "JBSST001".getBytes(StandardCharsets.US_ASCII);
+	static final byte[]							TRAILER_MAGIC		= "JBSSTEND".getBytes(StandardCharsets.US_ASCII);
+	static final int								TRAILER_LENGTH	= 8 + 8 + 8 + 8;
+	static final int								RECORD_OVERHEAD	= 8 + 8 + 2 + 4;
+	static final int								BLOCK_SIZE			= 64 * 1024;
+
+	private static final int				IO_BUFFER_SIZE	= 1024 * 1024;
+
+	private static final Logger			log							= LoggerFactory.getLogger(SortedTableWriter.class);
+
+	/**
+	 * Orders document files by ID then by DocType name, which is also the order of the DocType IDs.
+	 */
+	static final Comparator<Path>		FILE_ORDER			= Comparator.comparing(SimpleFanningFoldersFlatFilesDocStore::docIdOf)
+																															.thenComparing(SimpleFanningFoldersFlatFilesDocStore::docTypeNameOf);
+
+	private SortedTableWriter() {
+	}
+
+	/**
+	 * Writes the documents to a new table, replacing the target once complete.
+	 *
+	 * @param cabinetName
+	 *          the name of the cabinet the documents come from
+	 * @param documentFiles
+	 *          the document files of the cabinet, they are sorted in place
+	 * @param target
+	 *          the table file
+	 * @return the number of documents written
+	 * @throws IOException
+	 *           if a document could not be read or the table could not be written
+	 */
+	static long write(String cabinetName, List<Path> documentFiles, Path target) throws IOException
+	{
+		long start = System.nanoTime();
+		Collections.sort(documentFiles, FILE_ORDER);
+		TreeSet<String> typeNameSet = new TreeSet<>();
+		for (Path file : documentFiles) {
+			typeNameSet.add(SimpleFanningFoldersFlatFilesDocStore.docTypeNameOf(file));
+		}
+		List<String> typeNames = new ArrayList<>(typeNameSet);
+		if (typeNames.size() > Short.MAX_VALUE) { throw new IOException(String.format("Too many DocTypes in cabinet [%s] to freeze it", cabinetName)); }
+
+		Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+		ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+		DataOutputStream index = new DataOutputStream(indexBytes);
+		int blocks = 0;
+		try (CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), IO_BUFFER_SIZE));
+				DataOutputStream out = new DataOutputStream(counter)) {
+			out.write(HEADER_MAGIC);
+			out.writeUTF(cabinetName);
+
+			long blockStart = -1;
+			for (Path file : documentFiles) {
+				UUID docId = SimpleFanningFoldersFlatFilesDocStore.docIdOf(file);
+				short typeId = (short) Collections.binarySearch(typeNames, SimpleFanningFoldersFlatFilesDocStore.docTypeNameOf(file));
+				byte[] content = Files.readAllBytes(file);
+
+				if (blockStart < 0)
+				{
+					blockStart = counter.getCount();
+					index.writeLong(docId.getMostSignificantBits());
+					index.writeLong(docId.getLeastSignificantBits());
+					index.writeShort(typeId);
+					index.writeLong(blockStart);
+				}
+				out.writeLong(docId.getMostSignificantBits());
+				out.writeLong(docId.getLeastSignificantBits());
+				out.writeShort(typeId);
+				out.writeInt(content.length);
+				out.write(content);
+
+				if (counter.getCount() - blockStart >= BLOCK_SIZE)
+				{
+					index.writeInt((int) (counter.getCount() - blockStart));
+					blocks++;
+					blockStart = -1;
+				}
+			}
+			if (blockStart >= 0)
+			{
+				index.writeInt((int) (counter.getCount() - blockStart));
+				blocks++;
+			}
+
+			long typesOffset = counter.getCount();
+			out.writeShort(typeNames.size());
+			for (String typeName : typeNames) {
+				out.writeUTF(typeName);
+			}
+
+			long indexOffset = counter.getCount();
+			out.writeInt(blocks);
+			index.flush();
+			indexBytes.writeTo(out);
+
+			out.writeLong(typesOffset);
+			out.writeLong(indexOffset);
+			out.writeLong(documentFiles.size());
+			out.write(TRAILER_MAGIC);
+		}
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		log.info("Froze {} documents of cabinet [{}] in {} blocks to [{}] in {} ms", documentFiles.size(), cabinetName, blocks, target,
+							(System.nanoTime() - start) / 1_000_000);
+		return documentFiles.size();
+	}
+}
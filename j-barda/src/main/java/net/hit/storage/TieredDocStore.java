@@ -0,0 +1,557 @@
+package net.hit.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * DocStore spreading documents over a fast tier holding the frequently read documents and a cold tier holding the rest compressed.
+ *
+ * Writes always land in the fast tier. Reads look in the fast tier first then in the cold tier, so callers never see where a document
+ * lives. Access frequencies are estimated by a {@link FrequencySketch} whose counters decay over time, and the last access of every
+ * fast tier document is kept in memory.
+ *
+ * A single background thread migrates documents between tiers:
+ * <ul>
+ * <li>fast tier documents not accessed for demoteAfterMillis and read less than promoteThreshold times recently are compressed into the
+ * cold tier then removed from the fast tier;</li>
+ * <li>cold tier documents read promoteThreshold times recently are decompressed into the fast tier then removed from the cold tier.</li>
+ * </ul>
+ * A document is always copied before it is removed from its previous tier so concurrent reads find it in either. A cold tier copy left
+ * behind by a newer write to the fast tier is shadowed by it and replaced at the next demotion.
+ *
+ * Which documents are in the fast tier is saved to the state file at the end of every demotion pass and on {@link #close()}, and reloaded
+ * on construction. Only documents written within the last migration interval before a crash are missing from it, those are tracked again
+ * from their next access and never demoted until then.
+ */
+public class TieredDocStore implements DocStore {
+
+	/** Default idle time after which a fast tier document is demoted */
+	public static final long									DEFAULT_DEMOTE_AFTER_MILLIS			= 60 * 60 * 1000;
+
+	/** Default number of recent reads that promotes a cold tier document */
+	public static final int										DEFAULT_PROMOTE_THRESHOLD				= 4;
+
+	/** Default delay between two demotion passes */
+	public static final long									DEFAULT_MIGRATION_INTERVAL_MILLIS	= 60 * 1000;
+
+	/** Default maximum number of documents demoted per pass */
+	public static final int										DEFAULT_MAX_DEMOTIONS_PER_PASS		= 10_000;
+
+	private static final int									SKETCH_WIDTH										= 1 << 20;
+	private static final int									LOCK_STRIPES										= 1024;
+
+	private static final Logger								log															= LoggerFactory.getLogger(TieredDocStore.class);
+
+	private DocStore													fastTier;
+	private DocStore													coldTier;
+	private Path															stateFile;
+	private long															demoteAfterMillis;
+	private int																promoteThreshold;
+	private int																maxDemotionsPerPass;
+
+	private FrequencySketch										frequencies											= new FrequencySketch(SKETCH_WIDTH);
+	private Map<DocKey, Long>									residents												= new ConcurrentHashMap<>();
+	private Queue<DocKey>											promotions											= new ConcurrentLinkedQueue<>();
+	private Set<DocKey>												promotionsQueued								= ConcurrentHashMap.newKeySet();
+	private AtomicBoolean											promotionRequested							= new AtomicBoolean();
+	private Striped<Lock>											locks														= Striped.lock(LOCK_STRIPES);
+	private ScheduledExecutorService					migrator;
+
+	private long															startNanos											= System.nanoTime();
+	private AtomicLong												fastHits												= new AtomicLong();
+	private AtomicLong												coldHits												= new AtomicLong();
+	private AtomicLong												misses													= new AtomicLong();
+	private AtomicLong												promoted												= new AtomicLong();
+	private AtomicLong												demoted													= new AtomicLong();
+
+	/**
+	 * Composes two stores with the default migration settings.
+	 *
+	 * @param fastTier
+	 *          the store receiving writes and frequently read documents, closed along with this store
+	 * @param coldTier
+	 *          the store receiving the compressed rarely read documents, closed along with this store
+	 * @param stateFile
+	 *          the file tracking the fast tier documents across restarts
+	 */
+	public TieredDocStore(DocStore fastTier, DocStore coldTier, Path stateFile) {
+		this(fastTier, coldTier, stateFile, DEFAULT_DEMOTE_AFTER_MILLIS, DEFAULT_PROMOTE_THRESHOLD, DEFAULT_MIGRATION_INTERVAL_MILLIS,
+					DEFAULT_MAX_DEMOTIONS_PER_PASS);
+	}
+
+	/**
+	 * @param fastTier
+	 *          the store receiving writes and frequently read documents, closed along with this store
+	 * @param coldTier
+	 *          the store receiving the compressed rarely read documents, closed along with this store
+	 * @param stateFile
+	 *          the file tracking the fast tier documents across restarts
+	 * @param demoteAfterMillis
+	 *          idle time after which a fast tier document is demoted
+	 * @param promoteThreshold
+	 *          number of recent reads that promotes a cold tier document and keeps a fast tier one from being demoted
+	 * @param migrationIntervalMillis
+	 *          delay between two demotion passes
+	 * @param maxDemotionsPerPass
+	 *          maximum number of documents demoted per pass, bounding the load put on the tiers
+	 */
+	public TieredDocStore(DocStore fastTier, DocStore coldTier, Path stateFile, long demoteAfterMillis, int promoteThreshold,
+			long migrationIntervalMillis, int maxDemotionsPerPass) {
+		this.fastTier = fastTier;
+		this.coldTier = coldTier;
+		this.stateFile = stateFile;
+		this.demoteAfterMillis = demoteAfterMillis;
+		this.promoteThreshold = promoteThreshold;
+		this.maxDemotionsPerPass = maxDemotionsPerPass;
+		this.loadState();
+
+		this.migrator = Executors.newSingleThreadScheduledExecutor(r ->
+			{
+				Thread thread = new Thread(r, "tiered-store-migrator");
+				thread.setDaemon(true);
+				return thread;
+			});
+		this.migrator.scheduleWithFixedDelay(this::demote, migrationIntervalMillis, migrationIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void storeDocument(String cabinetName, UUID docId, byte[] document) {
+		this.storeDocument(cabinetName, docId, document, RawDocTypes.of(RawDocTypes.DEFAULT_NAME));
+	}
+
+	@Override
+	public <IN> void storeDocument(String cabinetName, UUID docId, IN document, DocType<IN> docType) {
+		DocKey key = new DocKey(cabinetName, docId);
+		Lock lock = this.locks.get(key);
+		lock.lock();
+		try
+		{
+			this.fastTier.storeDocument(cabinetName, docId, document, docType);
+			this.residents.put(key, now());
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean deleteDocument(String cabinetName, UUID docID) {
+		DocKey key = new DocKey(cabinetName, docID);
+		Lock lock = this.locks.get(key);
+		lock.lock();
+		try
+		{
+			boolean deleted = this.fastTier.deleteDocument(cabinetName, docID);
+			this.residents.remove(key);
+			return this.coldTier.deleteDocument(cabinetName, docID) || deleted;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public byte[] getDocumentBytes(String cabinetName, UUID docID) {
+		return this.getDocument(cabinetName, docID, RawDocTypes.of(RawDocTypes.DEFAULT_NAME));
+	}
+
+	@Override
+	public <OUT> OUT getDocument(String cabinetName, UUID docID, DocType<OUT> docType) {
+		return this.findDocument(cabinetName, docID, docType).orElseThrow(() -> new RuntimeException(String.format(
+				"No document [%s] of type [%s] in cabinet [%s] of either tier", docID, docType.getDocTypeName(), cabinetName)));
+	}
+
+	@Override
+	public boolean exists(String cabinetName, UUID docID) {
+		return this.fastTier.exists(cabinetName, docID) || this.coldTier.exists(cabinetName, docID);
+	}
+
+	@Override
+	public Set<String> listDocTypes(String cabinetName, UUID docID) {
+		Set<String> docTypeNames = new TreeSet<>(this.fastTier.listDocTypes(cabinetName, docID));
+		docTypeNames.addAll(this.coldTier.listDocTypes(cabinetName, docID));
+		return docTypeNames;
+	}
+
+	@Override
+	public Optional<byte[]> findDocumentBytes(String cabinetName, UUID docID) {
+		return this.findDocument(cabinetName, docID, RawDocTypes.of(RawDocTypes.DEFAULT_NAME));
+	}
+
+	@Override
+	public <OUT> Optional<OUT> findDocument(String cabinetName, UUID docID, DocType<OUT> docType) {
+		DocKey key = new DocKey(cabinetName, docID);
+		this.frequencies.increment(key);
+
+		Optional<OUT> document = this.fastTier.findDocument(cabinetName, docID, docType);
+		if (document.isPresent())
+		{
+			this.fastHits.incrementAndGet();
+			this.residents.put(key, now());
+			return document;
+		}
+
+		Optional<byte[]> compressed = this.coldTier.findDocument(cabinetName, docID, RawDocTypes.of(docType.getDocTypeName()));
+		if (compressed.isPresent())
+		{
+			this.coldHits.incrementAndGet();
+			if (this.frequencies.frequency(key) >= this.promoteThreshold)
+			{
+				this.requestPromotion(key);
+			}
+			return Optional.of(docType.getBufferReader().convert(ByteBuffer.wrap(decompress(compressed.get()))));
+		}
+
+		// a promotion may have moved the document between both lookups
+		document = this.fastTier.findDocument(cabinetName, docID, docType);
+		if (document.isPresent())
+		{
+			this.fastHits.incrementAndGet();
+		}
+		else
+		{
+			this.misses.incrementAndGet();
+		}
+		return document;
+	}
+
+	/**
+	 * @return the number of reads answered by the fast tier
+	 */
+	public long getFastTierHits()
+	{
+		return this.fastHits.get();
+	}
+
+	/**
+	 * @return the number of reads answered by the cold tier
+	 */
+	public long getColdTierHits()
+	{
+		return this.coldHits.get();
+	}
+
+	/**
+	 * @return the number of reads that found no document in either tier
+	 */
+	public long getMisses()
+	{
+		return this.misses.get();
+	}
+
+	/**
+	 * @return the share of reads answered by the fast tier, 0 before the first read
+	 */
+	public double getFastTierHitRate()
+	{
+		return ratio(this.fastHits.get(), this.fastHits.get() + this.coldHits.get() + this.misses.get());
+	}
+
+	/**
+	 * @return the share of reads answered by the cold tier, 0 before the first read
+	 */
+	public double getColdTierHitRate()
+	{
+		return ratio(this.coldHits.get(), this.fastHits.get() + this.coldHits.get() + this.misses.get());
+	}
+
+	/**
+	 * @return the number of documents moved from the cold tier to the fast tier
+	 */
+	public long getPromotions()
+	{
+		return this.promoted.get();
+	}
+
+	/**
+	 * @return the number of documents moved from the fast tier to the cold tier
+	 */
+	public long getDemotions()
+	{
+		return this.demoted.get();
+	}
+
+	/**
+	 * @return the average number of documents promoted per second since this store was created
+	 */
+	public double getPromotionRate()
+	{
+		return ratio(this.promoted.get(), (System.nanoTime() - this.startNanos) / 1e9);
+	}
+
+	/**
+	 * @return the average number of documents demoted per second since this store was created
+	 */
+	public double getDemotionRate()
+	{
+		return ratio(this.demoted.get(), (System.nanoTime() - this.startNanos) / 1e9);
+	}
+
+	/**
+	 * @return the number of documents known to be in the fast tier
+	 */
+	public int getFastTierDocuments()
+	{
+		return this.residents.size();
+	}
+
+	/**
+	 * Stops the migrations, saves the state then closes both tiers.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.migrator.shutdown();
+		try
+		{
+			this.migrator.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		try
+		{
+			this.saveState();
+		}
+		finally
+		{
+			try
+			{
+				this.fastTier.close();
+			}
+			finally
+			{
+				this.coldTier.close();
+			}
+		}
+	}
+
+	private void requestPromotion(DocKey key)
+	{
+		if (this.promotionsQueued.add(key))
+		{
+			this.promotions.add(key);
+			if (this.promotionRequested.compareAndSet(false, true))
+			{
+				this.migrator.execute(this::promote);
+			}
+		}
+	}
+
+	private void promote()
+	{
+		this.promotionRequested.set(false);
+		DocKey key;
+		while ((key = this.promotions.poll()) != null) {
+			try
+			{
+				this.migrate(key, this.coldTier, this.fastTier, true);
+			}
+			catch (RuntimeException e)
+			{
+				log.warn("Could not promote document [{}], it stays in the cold tier", key, e);
+			}
+			finally
+			{
+				this.promotionsQueued.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Demotes the idle fast tier documents then saves the state, so that a crash loses track of the documents written since the last pass
+	 * only.
+	 */
+	private void demote()
+	{
+		long now = now();
+		int demotions = 0;
+		for (Map.Entry<DocKey, Long> resident : this.residents.entrySet()) {
+			if (demotions >= this.maxDemotionsPerPass) break;
+			DocKey key = resident.getKey();
+			if (now - resident.getValue() < this.demoteAfterMillis || this.frequencies.frequency(key) >= this.promoteThreshold) continue;
+			try
+			{
+				this.migrate(key, this.fastTier, this.coldTier, false);
+				demotions++;
+			}
+			catch (RuntimeException e)
+			{
+				log.warn("Could not demote document [{}], it stays in the fast tier", key, e);
+			}
+		}
+		if (demotions > 0)
+		{
+			log.debug("Demoted {} documents, {} left in the fast tier", demotions, this.residents.size());
+		}
+		try
+		{
+			this.saveState();
+		}
+		catch (IOException | RuntimeException e)
+		{
+			log.warn("Could not save the tiered store state to [{}], it is retried after the next demotion pass", this.stateFile, e);
+		}
+	}
+
+	/**
+	 * Copies every DocType the source tier holds for a document to the other tier then removes it from the source tier, under the document's
+	 * lock so no write or delete interleaves.
+	 *
+	 * @param promotion
+	 *          true when moving from the cold tier to the fast tier, false otherwise
+	 */
+	private void migrate(DocKey key, DocStore source, DocStore target, boolean promotion)
+	{
+		Lock lock = this.locks.get(key);
+		lock.lock();
+		try
+		{
+			if (!promotion && now() - this.residents.getOrDefault(key, Long.MAX_VALUE) < this.demoteAfterMillis) return;
+
+			Map<String, byte[]> contents = new LinkedHashMap<>();
+			Set<String> newerInTarget = promotion ? target.listDocTypes(key.cabinetName, key.docId) : Collections.emptySet();
+			for (String docTypeName : source.listDocTypes(key.cabinetName, key.docId)) {
+				Optional<byte[]> content = source.findDocument(key.cabinetName, key.docId, RawDocTypes.of(docTypeName));
+				if (!content.isPresent()) { throw new RuntimeException(String.format("The DocType [%s] of document [%s] vanished while migrating it", docTypeName, key)); }
+				// a promoted DocType already written again to the fast tier is newer than its cold copy
+				if (!newerInTarget.contains(docTypeName))
+				{
+					contents.put(docTypeName, content.get());
+				}
+			}
+			for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+				byte[] bytes = promotion ? decompress(content.getValue()) : compress(content.getValue());
+				target.storeDocument(key.cabinetName, key.docId, bytes, RawDocTypes.of(content.getKey()));
+			}
+			source.deleteDocument(key.cabinetName, key.docId);
+
+			if (promotion)
+			{
+				this.residents.put(key, now());
+				this.promoted.incrementAndGet();
+			}
+			else
+			{
+				this.residents.remove(key);
+				if (!contents.isEmpty()) this.demoted.incrementAndGet();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void loadState()
+	{
+		if (this.stateFile == null || !Files.exists(this.stateFile)) return;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.stateFile))))
+		{
+			for (int i = in.readInt(); i > 0; i--) {
+				String cabinetName = in.readUTF();
+				UUID docId = new UUID(in.readLong(), in.readLong());
+				this.residents.put(new DocKey(cabinetName, docId), in.readLong());
+			}
+			log.info("Loaded {} fast tier documents from [{}]", this.residents.size(), this.stateFile);
+		}
+		catch (NoSuchFileException e)
+		{
+			// removed since checked, nothing to load
+		}
+		catch (IOException e)
+		{
+			log.warn("Could not load the tiered store state from [{}], fast tier documents are tracked again as they are accessed", this.stateFile, e);
+		}
+	}
+
+	private void saveState() throws IOException
+	{
+		if (this.stateFile == null) return;
+		Path temp = this.stateFile.resolveSibling(this.stateFile.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+		{
+			Map<DocKey, Long> snapshot = new LinkedHashMap<>(this.residents);
+			out.writeInt(snapshot.size());
+			for (Map.Entry<DocKey, Long> resident : snapshot.entrySet()) {
+				out.writeUTF(resident.getKey().cabinetName);
+				out.writeLong(resident.getKey().docId.getMostSignificantBits());
+				out.writeLong(resident.getKey().docId.getLeastSignificantBits());
+				out.writeLong(resident.getValue());
+			}
+		}
+		Files.move(temp, this.stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static byte[] compress(byte[] content)
+	{
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+		try (DeflaterOutputStream out = new DeflaterOutputStream(compressed))
+		{
+			out.write(content);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Could not compress a document for the cold tier", e);
+		}
+		return compressed.toByteArray();
+	}
+
+	private static byte[] decompress(byte[] compressed)
+	{
+		try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed)))
+		{
+			return ByteStreams.toByteArray(in);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Could not decompress a cold tier document", e);
+		}
+	}
+
+	private static long now()
+	{
+		return System.currentTimeMillis();
+	}
+
+	private static double ratio(double count, double total)
+	{
+		return total > 0 ? count / total : 0;
+	}
+}
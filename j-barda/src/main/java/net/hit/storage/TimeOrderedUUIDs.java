@@ -0,0 +1,80 @@
+package net.hit.storage;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates and decodes version 7 UUIDs, whose most significant 48 bits are the creation time in milliseconds since the epoch.
+ *
+ * IDs generated by this class are strictly increasing within the process: the 12 bits following the version act as a counter for IDs
+ * generated within the same millisecond, borrowing from the next millisecond when it overflows. The remaining 62 bits are random.
+ *
+ * Stored with the {@link SimpleFanningFoldersFlatFilesDocStore.BucketLayout#TIME_ORDERED} layout, documents written together share their
+ * folders and can be scanned by time range.
+ */
+public class TimeOrderedUUIDs {
+
+	private static final int				VERSION						= 7;
+	private static final int				COUNTER_BITS			= 12;
+	private static final long				VARIANT_BITS			= 0x8000000000000000L;
+	private static final long				RANDOM_MASK				= 0x3FFFFFFFFFFFFFFFL;
+
+	/** last timestamp and counter handed out, as timestamp << COUNTER_BITS | counter */
+	private static final AtomicLong	lastState					= new AtomicLong();
+
+	private TimeOrderedUUIDs() {
+	}
+
+	/**
+	 * @return a new ID, greater than every ID generated before it by this process
+	 */
+	public static UUID next()
+	{
+		long now = System.currentTimeMillis() << COUNTER_BITS;
+		long last;
+		long state;
+		do {
+			last = lastState.get();
+			state = Math.max(now, last + 1);
+		}
+		while (!lastState.compareAndSet(last, state));
+
+		long timestamp = state >>> COUNTER_BITS;
+		long counter = state & ((1 << COUNTER_BITS) - 1);
+		long msb = timestamp << 16 | VERSION << COUNTER_BITS | counter;
+		long lsb = ThreadLocalRandom.current().nextLong() & RANDOM_MASK | VARIANT_BITS;
+		return new UUID(msb, lsb);
+	}
+
+	/**
+	 * @param id
+	 *          any UUID
+	 * @return true if the ID is a version 7 UUID carrying its creation time
+	 */
+	public static boolean isTimeOrdered(UUID id)
+	{
+		return id.version() == VERSION && id.variant() == 2;
+	}
+
+	/**
+	 * @param id
+	 *          a version 7 UUID
+	 * @return the creation time of the ID in milliseconds since the epoch
+	 */
+	public static long timestampOf(UUID id)
+	{
+		return id.getMostSignificantBits() >>> 16;
+	}
+
+	/**
+	 * @param id
+	 *          a version 7 UUID
+	 * @return the creation time of the ID
+	 */
+	public static Instant instantOf(UUID id)
+	{
+		return Instant.ofEpochMilli(timestampOf(id));
+	}
+}
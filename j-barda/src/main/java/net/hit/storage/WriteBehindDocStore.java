@@ -0,0 +1,371 @@
+package net.hit.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * DocStore decorator that buffers writes in memory and hands them to the decorated store in batches.
+ *
+ * Writes to the same document replace each other in the buffer so only the last version reaches the decorated store, which pays off for
+ * documents rewritten many times per second. Reads are answered from the buffer first so a writer always reads its own writes.
+ *
+ * The buffer is flushed by a single background thread once it holds flushThreshold documents, and at every flush interval otherwise. Its
+ * content is bounded by maxBufferedBytes: writers block once it is full until a flush made room. A document stays readable from the buffer
+ * until the decorated store holds it, a failed flush keeps it buffered and retries at the next flush.
+ *
+ * Buffered writes are lost if the process dies, {@link #flush()} or {@link #close()} must be called for a clean shutdown.
+ */
+public class WriteBehindDocStore implements DocStore {
+
+	/** Default number of buffered documents that triggers a flush */
+	public static final int										DEFAULT_FLUSH_THRESHOLD				= 1024;
+
+	/** Default maximum time a write stays buffered */
+	public static final long									DEFAULT_FLUSH_INTERVAL_MILLIS	= 1000;
+
+	/** Default bound of the buffered content */
+	public static final long									DEFAULT_MAX_BUFFERED_BYTES		= 64 * 1024 * 1024;
+
+	private static final Logger								log														= LoggerFactory.getLogger(WriteBehindDocStore.class);
+
+	private DocStore													delegate;
+	private int																flushThreshold;
+	private long															maxBufferedBytes;
+
+	private Map<DocKey, Pending>					buffer												= new ConcurrentHashMap<>();
+	private AtomicLong												bufferedBytes									= new AtomicLong();
+	private AtomicLong												acceptedWrites								= new AtomicLong();
+	private AtomicLong												flushedWrites									= new AtomicLong();
+	private AtomicBoolean											flushRequested								= new AtomicBoolean();
+	private Object														room													= new Object();
+	private ScheduledExecutorService					flusher;
+
+	/**
+	 * Decorates a store with the default thresholds.
+	 *
+	 * @param delegate
+	 *          the store receiving the flushed writes, closed along with this store
+	 */
+	public WriteBehindDocStore(DocStore delegate) {
+		this(delegate, DEFAULT_FLUSH_THRESHOLD, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_MAX_BUFFERED_BYTES);
+	}
+
+	/**
+	 * @param delegate
+	 *          the store receiving the flushed writes, closed along with this store
+	 * @param flushThreshold
+	 *          number of buffered documents that triggers a flush
+	 * @param flushIntervalMillis
+	 *          maximum time a write stays buffered
+	 * @param maxBufferedBytes
+	 *          bound of the buffered content beyond which writers wait for a flush
+	 */
+	public WriteBehindDocStore(DocStore delegate, int flushThreshold, long flushIntervalMillis, long maxBufferedBytes) {
+		this.delegate = delegate;
+		this.flushThreshold = flushThreshold;
+		this.maxBufferedBytes = maxBufferedBytes;
+		this.flusher = Executors.newSingleThreadScheduledExecutor(r ->
+			{
+				Thread thread = new Thread(r, "write-behind-flusher");
+				thread.setDaemon(true);
+				return thread;
+			});
+		this.flusher.scheduleWithFixedDelay(this::flushBuffer, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void storeDocument(String cabinetName, UUID docId, byte[] document) {
+		this.buffer(cabinetName, docId, RawDocTypes.DEFAULT_NAME, document.clone());
+	}
+
+	@Override
+	public <IN> void storeDocument(String cabinetName, UUID docId, IN document, DocType<IN> docType) {
+		this.buffer(cabinetName, docId, docType.getDocTypeName(), docType.getWriter().convert(document));
+	}
+
+	@Override
+	public boolean deleteDocument(String cabinetName, UUID docID) {
+		boolean existed = this.exists(cabinetName, docID);
+		this.awaitRoom();
+		this.update(new DocKey(cabinetName, docID), pending -> Pending.deleted());
+		return existed;
+	}
+
+	@Override
+	public byte[] getDocumentBytes(String cabinetName, UUID docID) {
+		return this.getDocument(cabinetName, docID, RawDocTypes.of(RawDocTypes.DEFAULT_NAME));
+	}
+
+	@Override
+	public <OUT> OUT getDocument(String cabinetName, UUID docID, DocType<OUT> docType) {
+		Pending pending = this.buffer.get(new DocKey(cabinetName, docID));
+		if (pending == null) return this.delegate.getDocument(cabinetName, docID, docType);
+
+		byte[] content = pending.contents.get(docType.getDocTypeName());
+		if (content != null) return convert(content, docType);
+		if (pending.deleted) { throw new RuntimeException(String.format("The document [%s] of cabinet [%s] was deleted", docID, cabinetName)); }
+		return this.delegate.getDocument(cabinetName, docID, docType);
+	}
+
+	@Override
+	public boolean exists(String cabinetName, UUID docID) {
+		Pending pending = this.buffer.get(new DocKey(cabinetName, docID));
+		if (pending == null) return this.delegate.exists(cabinetName, docID);
+		if (!pending.contents.isEmpty()) return true;
+		return !pending.deleted && this.delegate.exists(cabinetName, docID);
+	}
+
+	@Override
+	public Set<String> listDocTypes(String cabinetName, UUID docID) {
+		Pending pending = this.buffer.get(new DocKey(cabinetName, docID));
+		if (pending == null) return this.delegate.listDocTypes(cabinetName, docID);
+
+		Set<String> docTypeNames = new TreeSet<>(pending.contents.keySet());
+		if (!pending.deleted) docTypeNames.addAll(this.delegate.listDocTypes(cabinetName, docID));
+		return docTypeNames;
+	}
+
+	@Override
+	public Optional<byte[]> findDocumentBytes(String cabinetName, UUID docID) {
+		return this.findDocument(cabinetName, docID, RawDocTypes.of(RawDocTypes.DEFAULT_NAME));
+	}
+
+	@Override
+	public <OUT> Optional<OUT> findDocument(String cabinetName, UUID docID, DocType<OUT> docType) {
+		Pending pending = this.buffer.get(new DocKey(cabinetName, docID));
+		if (pending == null) return this.delegate.findDocument(cabinetName, docID, docType);
+
+		byte[] content = pending.contents.get(docType.getDocTypeName());
+		if (content != null) return Optional.of(convert(content, docType));
+		if (pending.deleted) return Optional.empty();
+		return this.delegate.findDocument(cabinetName, docID, docType);
+	}
+
+	/**
+	 * Writes every buffered document to the decorated store and waits for it to be done.
+	 *
+	 * @throws RuntimeException
+	 *           if some documents could not be written, they remain buffered
+	 */
+	public void flush()
+	{
+		try {
+			int failures = this.flusher.submit(this::flushBuffer).get();
+			if (failures > 0) { throw new RuntimeException(String.format("Could not flush %d buffered documents", failures)); }
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while flushing the buffered documents", e);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException("Could not flush the buffered documents", e.getCause());
+		}
+	}
+
+	/**
+	 * @return the number of documents waiting to be flushed
+	 */
+	public int getBufferedDocuments()
+	{
+		return this.buffer.size();
+	}
+
+	/**
+	 * @return the size of the content waiting to be flushed
+	 */
+	public long getBufferedBytes()
+	{
+		return this.bufferedBytes.get();
+	}
+
+	/**
+	 * @return the number of writes and deletes accepted so far
+	 */
+	public long getAcceptedWrites()
+	{
+		return this.acceptedWrites.get();
+	}
+
+	/**
+	 * @return the number of writes and deletes handed to the decorated store so far, the difference with {@link #getAcceptedWrites()}
+	 *         being the ones coalesced or still buffered
+	 */
+	public long getFlushedWrites()
+	{
+		return this.flushedWrites.get();
+	}
+
+	/**
+	 * Flushes the buffer, stops the flusher then closes the decorated store.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			this.flush();
+		}
+		finally {
+			this.flusher.shutdown();
+			this.delegate.close();
+		}
+	}
+
+	private void buffer(String cabinetName, UUID docId, String docTypeName, byte[] content)
+	{
+		this.awaitRoom();
+		this.update(new DocKey(cabinetName, docId), pending -> pending == null ? Pending.of(docTypeName, content) : pending.with(docTypeName, content));
+	}
+
+	private void update(DocKey key, UnaryOperator<Pending> change)
+	{
+		this.buffer.compute(key, (k, pending) ->
+			{
+				Pending updated = change.apply(pending);
+				this.bufferedBytes.addAndGet(updated.size - (pending == null ? 0 : pending.size));
+				return updated;
+			});
+		this.acceptedWrites.incrementAndGet();
+		if (this.buffer.size() >= this.flushThreshold || this.bufferedBytes.get() >= this.maxBufferedBytes)
+		{
+			this.requestFlush();
+		}
+	}
+
+	/**
+	 * Backpressure: blocks the writer while the buffer is full.
+	 */
+	private void awaitRoom()
+	{
+		if (this.bufferedBytes.get() < this.maxBufferedBytes) return;
+
+		synchronized (this.room) {
+			while (this.bufferedBytes.get() >= this.maxBufferedBytes) {
+				this.requestFlush();
+				try {
+					this.room.wait(100);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while waiting for the write buffer to make room", e);
+				}
+			}
+		}
+	}
+
+	private void requestFlush()
+	{
+		if (this.flushRequested.compareAndSet(false, true))
+		{
+			this.flusher.execute(this::flushBuffer);
+		}
+	}
+
+	/**
+	 * Runs on the flusher thread only so that two versions of a document are never written concurrently.
+	 *
+	 * @return the number of documents that could not be written
+	 */
+	private int flushBuffer()
+	{
+		this.flushRequested.set(false);
+		int failures = 0;
+		int flushed = 0;
+		for (Map.Entry<DocKey, Pending> entry : this.buffer.entrySet()) {
+			DocKey key = entry.getKey();
+			Pending pending = entry.getValue();
+			try {
+				if (pending.deleted)
+				{
+					this.delegate.deleteDocument(key.cabinetName, key.docId);
+				}
+				for (Map.Entry<String, byte[]> content : pending.contents.entrySet()) {
+					this.delegate.storeDocument(key.cabinetName, key.docId, content.getValue(), RawDocTypes.of(content.getKey()));
+				}
+				// a newer version written meanwhile stays buffered for the next flush
+				if (this.buffer.remove(key, pending))
+				{
+					this.bufferedBytes.addAndGet(-pending.size);
+				}
+				this.flushedWrites.incrementAndGet();
+				if (++flushed % this.flushThreshold == 0)
+				{
+					this.signalRoom();
+				}
+			}
+			catch (RuntimeException e) {
+				failures++;
+				log.error("Could not flush the document [{}] of cabinet [{}], it stays buffered", key.docId, key.cabinetName, e);
+			}
+		}
+		this.signalRoom();
+		return failures;
+	}
+
+	private void signalRoom()
+	{
+		synchronized (this.room) {
+			this.room.notifyAll();
+		}
+	}
+
+	/**
+	 * The buffered content is handed out read-only so callers cannot alter it.
+	 */
+	private static <OUT> OUT convert(byte[] content, DocType<OUT> docType)
+	{
+		return docType.getBufferReader().convert(ByteBuffer.wrap(content).asReadOnlyBuffer());
+	}
+
+	/**
+	 * Immutable buffered state of a document: whether it must first be deleted, then the content to store per DocType name.
+	 */
+	private static final class Pending {
+		private final boolean							deleted;
+		private final Map<String, byte[]>	contents;
+		private final long								size;
+
+		private Pending(boolean deleted, Map<String, byte[]> contents) {
+			this.deleted = deleted;
+			this.contents = contents;
+			long total = 0;
+			for (byte[] content : contents.values()) {
+				total += content.length;
+			}
+			this.size = total;
+		}
+
+		static Pending deleted()
+		{
+			return new Pending(true, Collections.emptyMap());
+		}
+
+		static Pending of(String docTypeName, byte[] content)
+		{
+			return new Pending(false, Collections.singletonMap(docTypeName, content));
+		}
+
+		Pending with(String docTypeName, byte[] content)
+		{
+			Map<String, byte[]> contents = new HashMap<>(this.contents);
+			contents.put(docTypeName, content);
+			return new Pending(this.deleted, Collections.unmodifiableMap(contents));
+		}
+	}
+}
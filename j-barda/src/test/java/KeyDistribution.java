@@ -0,0 +1,59 @@
+import java.util.Random;
+
+/**
+ * Picks which document of the key space an operation goes to.
+ */
+public interface KeyDistribution {
+
+	/**
+	 * @param random
+	 *          the calling thread's random source
+	 * @return a key in [0, keyCount)
+	 */
+	long next(Random random);
+
+	/**
+	 * Every key is equally likely
+	 * 
+	 * @param keyCount
+	 *          the size of the key space
+	 * @return the distribution
+	 */
+	static KeyDistribution uniform(long keyCount)
+	{
+		return random -> (long) (random.nextDouble() * keyCount);
+	}
+
+	/**
+	 * A few keys are hot and most are cold, key 0 being the hottest.
+	 * 
+	 * Uses the generator from Gray et al. "Quickly Generating Billion-Record Synthetic Databases", computing the zeta constant of the key
+	 * space once up front.
+	 * 
+	 * @param keyCount
+	 *          the size of the key space
+	 * @param theta
+	 *          the skew in (0, 1), 0.99 being the usual choice
+	 * @return the distribution
+	 */
+	static KeyDistribution zipfian(long keyCount, double theta)
+	{
+		double zetaN = 0;
+		for (long i = 1; i <= keyCount; i++) {
+			zetaN += 1 / Math.pow(i, theta);
+		}
+		double zeta2 = 1 + 1 / Math.pow(2, theta);
+		double alpha = 1 / (1 - theta);
+		double eta = (1 - Math.pow(2.0 / keyCount, 1 - theta)) / (1 - zeta2 / zetaN);
+		double zetaNFinal = zetaN;
+
+		return random ->
+			{
+				double u = random.nextDouble();
+				double uz = u * zetaNFinal;
+				if (uz < 1) return 0;
+				if (uz < zeta2) return Math.min(1, keyCount - 1);
+				return Math.min(keyCount - 1, (long) (keyCount * Math.pow(eta * u - eta + 1, alpha)));
+			};
+	}
+}
@@ -0,0 +1,84 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies with a bounded relative error.
+ * 
+ * Values are bucketed by power of two then split in {@link #SUB_BUCKETS} linear sub-buckets, so a recorded value is off by at most 1/
+ * {@link #SUB_BUCKETS} of itself.
+ */
+public class LatencyHistogram {
+
+	private static final int	SUB_BUCKET_BITS	= 5;
+	private static final int	SUB_BUCKETS			= 1 << SUB_BUCKET_BITS;
+
+	private AtomicLongArray		counts					= new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+
+	/**
+	 * @param nanos
+	 *          the latency to record
+	 */
+	public void record(long nanos)
+	{
+		this.counts.incrementAndGet(indexOf(Math.max(0, nanos)));
+	}
+
+	/**
+	 * Adds the counts of another histogram to this one
+	 * 
+	 * @param other
+	 *          the histogram to add
+	 */
+	public void add(LatencyHistogram other)
+	{
+		for (int i = 0; i < this.counts.length(); i++) {
+			long count = other.counts.get(i);
+			if (count > 0) this.counts.addAndGet(i, count);
+		}
+	}
+
+	/**
+	 * @return the number of values recorded
+	 */
+	public long count()
+	{
+		long total = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			total += this.counts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * @param percentile
+	 *          the percentile in [0, 100]
+	 * @return the upper bound of the bucket holding the percentile in nanoseconds, 0 if nothing was recorded
+	 */
+	public long percentile(double percentile)
+	{
+		long total = this.count();
+		if (total == 0) return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			seen += this.counts.get(i);
+			if (seen >= rank) return upperBoundOf(i);
+		}
+		return upperBoundOf(this.counts.length() - 1);
+	}
+
+	private static int indexOf(long value)
+	{
+		if (value < SUB_BUCKETS) return (int) value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return magnitude * SUB_BUCKETS + (int) (value >>> magnitude);
+	}
+
+	private static long upperBoundOf(int index)
+	{
+		if (index < SUB_BUCKETS) return index;
+		int magnitude = index / SUB_BUCKETS - 1;
+		long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << magnitude) - 1;
+	}
+}
@@ -0,0 +1,418 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.hit.storage.DocStore;
+import net.hit.storage.SimpleFanningFoldersFlatFilesDocStore;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Drives a mixed read/write load against any DocStore and reports throughput and latency percentiles over time.
+ *
+ * The load goes to a key space of keyCount documents. Keys are turned into documents by a {@link DocBuilder} whose {@link IDGenerator}
+ * derives the UUID from the key, so the same key always lands on the same document, and whose {@link RawDocByteMarshaller} produces a
+ * payload sized by the {@link SizeDistribution}. Reads and rewrites pick their key from the {@link KeyDistribution}.
+ *
+ * An optional pre-load phase first writes every document of the key space so that reads hit a full cabinet.
+ *
+ * <pre>
+ * LoadGenerator.against(store)
+ *              .inCab("load")
+ *              .keySpace(5_000_000, true)
+ *              .zipfian(0.99)
+ *              .sizes(SizeDistribution.exponential(2048, 65536))
+ *              .threads(16)
+ *              .readRatio(0.9)
+ *              .targetRate(20_000)
+ *              .runFor(5, TimeUnit.MINUTES)
+ *              .run();
+ * </pre>
+ */
+public class LoadGenerator {
+
+	private static final long	KEY_SPACE_MSB		= 0x6A62617264614C47L;
+	private static final long	PRELOAD_CHUNK		= 1000;
+	private static final long	MIN_WAIT_NANOS	= TimeUnit.MILLISECONDS.toNanos(10);
+
+	private DocStore					store;
+	private String						cabinetName			= "load";
+	private int								threads					= Runtime.getRuntime().availableProcessors();
+	private double						readRatio				= 0.8;
+	private SizeDistribution	sizes						= SizeDistribution.fixed(1024);
+	private long							keyCount				= 100_000;
+	private boolean						preload					= false;
+	private double						zipfianTheta		= 0;
+	private double						targetRate			= 0;
+	private long							durationNanos		= TimeUnit.MINUTES.toNanos(1);
+	private long							reportNanos			= TimeUnit.SECONDS.toNanos(5);
+
+	private IDGenerator<Long>	idGenerator			= key -> new UUID(KEY_SPACE_MSB, key);
+	private DocBuilder<Long>	docBuilder;
+
+	/**
+	 * Starts configuring a load against the given store.
+	 *
+	 * @param store
+	 *          the store to load
+	 * @return the load generator
+	 */
+	public static LoadGenerator against(DocStore store)
+	{
+		return new LoadGenerator(store);
+	}
+
+	private LoadGenerator(DocStore store)
+	{
+		this.store = store;
+		this.docBuilder = new DocBuilder<Long>().as(this.idGenerator)
+																						.frozen(key ->
+																							{
+																								byte[] payload = new byte[this.sizes.next(ThreadLocalRandom.current())];
+																								Arrays.fill(payload, (byte) (long) key);
+																								return payload;
+																							});
+	}
+
+	/**
+	 * @param cabinetName
+	 *          the cabinet receiving the load
+	 * @return this load generator
+	 */
+	public LoadGenerator inCab(String cabinetName)
+	{
+		this.cabinetName = cabinetName;
+		return this;
+	}
+
+	/**
+	 * @param threads
+	 *          the number of threads issuing operations
+	 * @return this load generator
+	 */
+	public LoadGenerator threads(int threads)
+	{
+		this.threads = threads;
+		return this;
+	}
+
+	/**
+	 * @param readRatio
+	 *          the share of operations that are reads, the rest being writes
+	 * @return this load generator
+	 */
+	public LoadGenerator readRatio(double readRatio)
+	{
+		this.readRatio = readRatio;
+		return this;
+	}
+
+	/**
+	 * @param sizes
+	 *          the size of the documents written
+	 * @return this load generator
+	 */
+	public LoadGenerator sizes(SizeDistribution sizes)
+	{
+		this.sizes = sizes;
+		return this;
+	}
+
+	/**
+	 * @param keyCount
+	 *          the number of distinct documents the load goes to
+	 * @param preload
+	 *          if every document must be written before the load starts
+	 * @return this load generator
+	 */
+	public LoadGenerator keySpace(long keyCount, boolean preload)
+	{
+		this.keyCount = keyCount;
+		this.preload = preload;
+		return this;
+	}
+
+	/**
+	 * Spread operations evenly over the key space
+	 *
+	 * @return this load generator
+	 */
+	public LoadGenerator uniform()
+	{
+		this.zipfianTheta = 0;
+		return this;
+	}
+
+	/**
+	 * Concentrate operations on a few hot keys
+	 *
+	 * @param theta
+	 *          the skew in (0, 1)
+	 * @return this load generator
+	 */
+	public LoadGenerator zipfian(double theta)
+	{
+		this.zipfianTheta = theta;
+		return this;
+	}
+
+	/**
+	 * @param operationsPerSecond
+	 *          the total rate to issue operations at across all threads, 0 for as fast as possible
+	 * @return this load generator
+	 */
+	public LoadGenerator targetRate(double operationsPerSecond)
+	{
+		this.targetRate = operationsPerSecond;
+		return this;
+	}
+
+	/**
+	 * @param duration
+	 *          how long the load runs, pre-load excluded
+	 * @param unit
+	 *          the duration's unit
+	 * @return this load generator
+	 */
+	public LoadGenerator runFor(long duration, TimeUnit unit)
+	{
+		this.durationNanos = unit.toNanos(duration);
+		return this;
+	}
+
+	/**
+	 * @param interval
+	 *          the time between two reports
+	 * @param unit
+	 *          the interval's unit
+	 * @return this load generator
+	 */
+	public LoadGenerator reportEvery(long interval, TimeUnit unit)
+	{
+		this.reportNanos = unit.toNanos(interval);
+		return this;
+	}
+
+	/**
+	 * Runs the pre-load if requested then the load, printing a report line per interval and a summary at the end.
+	 *
+	 * @throws InterruptedException
+	 *           if interrupted while waiting on the workers
+	 */
+	public void run() throws InterruptedException
+	{
+		if (this.preload)
+		{
+			this.runPreload();
+		}
+
+		KeyDistribution keys = this.zipfianTheta > 0 ? KeyDistribution.zipfian(this.keyCount, this.zipfianTheta) : KeyDistribution.uniform(this.keyCount);
+		RateLimiter limiter = this.targetRate > 0 ? RateLimiter.create(this.targetRate) : null;
+		AtomicReference<Interval> current = new AtomicReference<>(new Interval());
+		// workers may still record into an interval after it was reported, the total is only summed once they are done
+		List<Interval> intervals = new ArrayList<>();
+
+		System.out.printf("Load on cabinet [%s]: %d threads, %.0f%% reads, %d keys, %s, %s%n", this.cabinetName, this.threads, this.readRatio * 100,
+											this.keyCount, this.zipfianTheta > 0 ? "zipfian " + this.zipfianTheta : "uniform", limiter == null ? "unthrottled" : this.targetRate + " ops/s");
+		System.out.println(Interval.HEADER);
+
+		long start = System.nanoTime();
+		long deadline = start + this.durationNanos;
+		ExecutorService workers = Executors.newFixedThreadPool(this.threads);
+		for (int i = 0; i < this.threads; i++) {
+			workers.execute(() ->
+				{
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+						if (limiter != null) limiter.acquire();
+						long key = keys.next(random);
+						Interval interval = current.get();
+						try {
+							if (random.nextDouble() < this.readRatio)
+							{
+								UUID docID = this.idGenerator.generate(key);
+								long opStart = System.nanoTime();
+								boolean hit = this.store.findDocumentBytes(this.cabinetName, docID).isPresent();
+								interval.reads.record(System.nanoTime() - opStart);
+								if (!hit) interval.misses.incrementAndGet();
+							}
+							else
+							{
+								Doc doc = this.docBuilder.doc(key);
+								long opStart = System.nanoTime();
+								this.store.storeDocument(this.cabinetName, doc.getDocID(), doc.getDocContent());
+								interval.writes.record(System.nanoTime() - opStart);
+								interval.bytesWritten.addAndGet(doc.getDocContent().length);
+							}
+						}
+						catch (RuntimeException e) {
+							interval.errors.incrementAndGet();
+						}
+					}
+				});
+		}
+		workers.shutdown();
+
+		long intervalStart = start;
+		while (!workers.awaitTermination(this.nanosToNextWakeUp(intervalStart, deadline), TimeUnit.NANOSECONDS)) {
+			long now = System.nanoTime();
+			if (now - intervalStart < this.reportNanos) continue;
+			Interval done = current.getAndSet(new Interval());
+			intervals.add(done);
+			System.out.println(done.report(now - start, now - intervalStart));
+			intervalStart = now;
+		}
+		long end = System.nanoTime();
+		Interval last = current.get();
+		intervals.add(last);
+		System.out.println(last.report(end - start, end - intervalStart));
+
+		Interval total = new Interval();
+		for (Interval interval : intervals) {
+			total.add(interval);
+		}
+		System.out.println("Total");
+		System.out.println(total.report(end - start, end - start));
+	}
+
+	/**
+	 * The reporter wakes up for the next report or the deadline, whichever comes first. Past the deadline it keeps the report pace while the
+	 * workers finish their last operation.
+	 */
+	private long nanosToNextWakeUp(long intervalStart, long deadline)
+	{
+		long now = System.nanoTime();
+		long nextReport = intervalStart + this.reportNanos;
+		long wakeUp = now < deadline ? Math.min(nextReport, deadline) : nextReport;
+		return Math.max(MIN_WAIT_NANOS, wakeUp - now);
+	}
+
+	private void runPreload() throws InterruptedException
+	{
+		System.out.printf("Pre-loading %d documents in cabinet [%s] with %d threads%n", this.keyCount, this.cabinetName, this.threads);
+		AtomicLong nextChunk = new AtomicLong();
+		AtomicLong written = new AtomicLong();
+		AtomicLong bytes = new AtomicLong();
+		long start = System.nanoTime();
+
+		ExecutorService workers = Executors.newFixedThreadPool(this.threads);
+		for (int i = 0; i < this.threads; i++) {
+			workers.execute(() ->
+				{
+					long chunkStart;
+					while ((chunkStart = nextChunk.getAndAdd(PRELOAD_CHUNK)) < this.keyCount && !Thread.currentThread().isInterrupted()) {
+						for (long key = chunkStart; key < Math.min(chunkStart + PRELOAD_CHUNK, this.keyCount); key++) {
+							Doc doc = this.docBuilder.doc(key);
+							this.store.storeDocument(this.cabinetName, doc.getDocID(), doc.getDocContent());
+							bytes.addAndGet(doc.getDocContent().length);
+							written.incrementAndGet();
+						}
+					}
+				});
+		}
+		workers.shutdown();
+		while (!workers.awaitTermination(this.reportNanos, TimeUnit.NANOSECONDS)) {
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("  %,d / %,d documents, %.0f docs/s, %.2f MB/s%n", written.get(), this.keyCount, written.get() / seconds, bytes.get() / seconds / 1024 / 1024);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Pre-loaded %,d documents in %.1f s, %.0f docs/s, %.2f MB/s%n", written.get(), seconds, written.get() / seconds, bytes.get() / seconds / 1024 / 1024);
+	}
+
+	/**
+	 * Counters of a reporting interval
+	 */
+	private static class Interval {
+		static final String			HEADER				= String.format("%8s %10s %10s %8s %8s %8s | %8s %8s %8s %8s | %8s %8s %8s %8s", "time(s)", "reads/s", "writes/s",
+																										"MB/s", "misses", "errors", "r p50", "r p99", "r p99.9", "r max", "w p50", "w p99", "w p99.9", "w max");
+
+		LatencyHistogram				reads					= new LatencyHistogram();
+		LatencyHistogram				writes				= new LatencyHistogram();
+		AtomicLong							misses				= new AtomicLong();
+		AtomicLong							errors				= new AtomicLong();
+		AtomicLong							bytesWritten	= new AtomicLong();
+
+		void add(Interval other)
+		{
+			this.reads.add(other.reads);
+			this.writes.add(other.writes);
+			this.misses.addAndGet(other.misses.get());
+			this.errors.addAndGet(other.errors.get());
+			this.bytesWritten.addAndGet(other.bytesWritten.get());
+		}
+
+		/**
+		 * latencies are reported in microseconds
+		 */
+		String report(long elapsedNanos, long intervalNanos)
+		{
+			double seconds = intervalNanos / 1e9;
+			return String.format("%8.1f %10.0f %10.0f %8.2f %8d %8d | %8d %8d %8d %8d | %8d %8d %8d %8d", elapsedNanos / 1e9, this.reads.count() / seconds,
+														this.writes.count() / seconds, this.bytesWritten.get() / seconds / 1024 / 1024, this.misses.get(), this.errors.get(),
+														micros(this.reads, 50), micros(this.reads, 99), micros(this.reads, 99.9), micros(this.reads, 100), micros(this.writes, 50),
+														micros(this.writes, 99), micros(this.writes, 99.9), micros(this.writes, 100));
+		}
+
+		private static long micros(LatencyHistogram histogram, double percentile)
+		{
+			return TimeUnit.NANOSECONDS.toMicros(histogram.percentile(percentile));
+		}
+	}
+
+	/**
+	 * Runs a load against a {@link SimpleFanningFoldersFlatFilesDocStore}.
+	 *
+	 * @param args
+	 *          name=value pairs: root (mandatory), cabinet, threads, reads (ratio), keys, preload (true/false), zipfian (theta), size (bytes or
+	 *          min-max), rate (ops/s), seconds
+	 * @throws IOException
+	 *           if the store could not be opened or closed
+	 * @throws InterruptedException
+	 *           if interrupted while waiting on the workers
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals > 0) options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		if (!options.containsKey("root"))
+		{
+			System.err.println("usage: LoadGenerator root=<store root> [cabinet=load] [threads=n] [reads=0.8] [keys=100000] [preload=false] "
+												+ "[zipfian=0.99] [size=1024|min-max] [rate=0] [seconds=60]");
+			return;
+		}
+
+		SizeDistribution sizes = SizeDistribution.fixed(1024);
+		String size = options.get("size");
+		if (size != null)
+		{
+			String[] bounds = size.split("-");
+			sizes = bounds.length == 2 ? SizeDistribution.uniform(Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1])) : SizeDistribution.fixed(Integer.parseInt(size));
+		}
+
+		try (DocStore store = new SimpleFanningFoldersFlatFilesDocStore(Paths.get(options.get("root")))) {
+			LoadGenerator.against(store)
+										.inCab(options.getOrDefault("cabinet", "load"))
+										.threads(Integer.parseInt(options.getOrDefault("threads", Integer.toString(Runtime.getRuntime().availableProcessors()))))
+										.readRatio(Double.parseDouble(options.getOrDefault("reads", "0.8")))
+										.keySpace(Long.parseLong(options.getOrDefault("keys", "100000")), Boolean.parseBoolean(options.getOrDefault("preload", "false")))
+										.zipfian(Double.parseDouble(options.getOrDefault("zipfian", "0")))
+										.sizes(sizes)
+										.targetRate(Double.parseDouble(options.getOrDefault("rate", "0")))
+										.runFor(Long.parseLong(options.getOrDefault("seconds", "60")), TimeUnit.SECONDS)
+										.run();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+import java.util.Random;
+
+/**
+ * Picks the size of the documents written.
+ */
+public interface SizeDistribution {
+
+	/**
+	 * @param random
+	 *          the calling thread's random source
+	 * @return a document size in bytes
+	 */
+	int next(Random random);
+
+	/**
+	 * @param size
+	 *          the size of every document
+	 * @return the distribution
+	 */
+	static SizeDistribution fixed(int size)
+	{
+		return random -> size;
+	}
+
+	/**
+	 * @param min
+	 *          the smallest size
+	 * @param max
+	 *          the largest size
+	 * @return the distribution
+	 */
+	static SizeDistribution uniform(int min, int max)
+	{
+		return random -> min + random.nextInt(max - min + 1);
+	}
+
+	/**
+	 * Mostly small documents with a long tail of large ones.
+	 * 
+	 * @param mean
+	 *          the mean size
+	 * @param max
+	 *          the largest size, the tail is cut there
+	 * @return the distribution
+	 */
+	static SizeDistribution exponential(int mean, int max)
+	{
+		return random -> (int) Math.min(max, -mean * Math.log(1 - random.nextDouble()));
+	}
+}
@@ -0,0 +1,17 @@
+import java.util.UUID;
+
+import net.hit.storage.TimeOrderedUUIDs;
+
+/**
+ * Generates time ordered version 7 UUIDs, ignoring the object itself.
+ * 
+ * @param <T>
+ *          the Object Type
+ */
+public class TimeOrderedIDGenerator<T extends Object> implements IDGenerator<T> {
+
+	@Override
+	public UUID generate(T object) {
+		return TimeOrderedUUIDs.next();
+	}
+}